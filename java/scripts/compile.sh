@@ -9,5 +9,6 @@ javac -d $DIR/../classes $DIR/../src/Cafe.java
 
 #run the java program
 #Use your database name, port number and login
-java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Cafe $USER"_DB" $PGPORT $USER
+#When a replica was started with sql/scripts/startReplica.sh, reads go to $REPLICA_PORT
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Cafe $USER"_DB" $PGPORT $USER $REPLICA_PORT
 
@@ -0,0 +1,13 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the generator
+javac -d $DIR/../classes $DIR/../src/DataGenerator.java
+
+# generate the data set, e.g.
+#   ./generate_data.sh --seed 7 --orders 50000000 --out /tmp/$USER/data
+#   ./generate_data.sh --orders 100000 --db $USER"_DB" $PGPORT $USER
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar DataGenerator "$@"
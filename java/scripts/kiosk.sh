@@ -0,0 +1,12 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/Cafe.java
+
+#run the kiosk on a menu snapshot exported from the Menu screen (option 10)
+#no database connection is needed
+java -cp $DIR/../classes Cafe -kiosk ${1:-$DIR/../menu.snapshot}
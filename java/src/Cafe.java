@@ -14,16 +14,40 @@
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -43,6 +67,25 @@ public class Cafe {
    // login & type of current user
    String user_login;
 
+   // favorite items of the current user, cached for the session.
+   // null until first read and whenever the FavoriteItems rows change.
+   List<String> user_favorites;
+
+   // best-seller counts per item, shared by every screen of this process
+   PopularityTracker popularity = new PopularityTracker();
+
+   // password checks; the PBKDF2 cost is set with -Dcafe.auth.iterations
+   Authenticator auth = new Authenticator(Integer.getInteger("cafe.auth.iterations", 20000));
+
+   // queued ItemStatus status changes, written in batches on a second connection
+   ItemStatusWriter statusWriter;
+
+   // routes read-only queries to the replica, null without one
+   ReplicaRouter router;
+
+   // set when the open transaction wrote, so the write is noted on commit
+   private boolean _wroteInTransaction = false;
+
    /**
     * Creates a new instance of Cafe
     *
@@ -62,6 +105,8 @@ public class Cafe {
 
          // obtain a physical connection
          this._connection = DriverManager.getConnection(url, user, passwd);
+         // up to 1000 queued changes, written 50 at a time or every 2 seconds
+         this.statusWriter = new ItemStatusWriter(DriverManager.getConnection(url, user, passwd), 50, 1000, 2000);
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -70,6 +115,28 @@ public class Cafe {
       }//end catch
    }//end Cafe
 
+   /**
+    * Creates a new instance of Cafe that also sends read-only queries to a
+    * replica of the database on the same host.
+    *
+    * @param replicaPort the port of the replica
+    * @param maxLagMillis how far behind the primary the replica may be
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Cafe(String dbname, String dbport, String user, String passwd, String replicaPort, long maxLagMillis) throws SQLException {
+      this(dbname, dbport, user, passwd);
+      try{
+         String url = "jdbc:postgresql://localhost:" + replicaPort + "/" + dbname;
+         System.out.println ("Replica URL: " + url + "\n");
+         Connection replica = DriverManager.getConnection(url, user, passwd);
+         // the WAL sampler gets its own primary connection, like the status writer
+         Connection sampler = DriverManager.getConnection("jdbc:postgresql://localhost:" + dbport + "/" + dbname, user, passwd);
+         this.router = new ReplicaRouter(this._connection, sampler, replica, maxLagMillis);
+      }catch (SQLException e){
+         System.err.println("Unable to connect to the replica, reading from the primary: " + e.getMessage() );
+      }//end catch
+   }//end Cafe
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
@@ -83,6 +150,7 @@ public class Cafe {
 
       // issues the update instruction
       stmt.executeUpdate (sql);
+      noteWrite ();
 
       // close the instruction
       stmt.close ();
@@ -98,8 +166,12 @@ public class Cafe {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
+      return printResult (this._connection, query);
+   }//end executeQuery
+
+   private int printResult (Connection connection, String query) throws SQLException {
       // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      Statement stmt = connection.createStatement ();
 
       // issues the query instruction
       ResultSet rs = stmt.executeQuery (query);
@@ -211,10 +283,212 @@ public class Cafe {
 	return -1;
    }
 
+   /**
+    * Method to execute a parameterized update SQL statement.  Each '?' in
+    * the statement is bound, in order, to the given parameters.
+    *
+    * @param sql the input SQL string with '?' placeholders
+    * @param params the values bound to the placeholders
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      PreparedStatement stmt = this._connection.prepareStatement (sql);
+      try{
+         bind (stmt, params);
+         int count = stmt.executeUpdate ();
+         noteWrite ();
+         return count;
+      }finally{
+         stmt.close ();
+      }
+   }//end executeUpdate
+
+   /**
+    * Method to execute a parameterized query SQL instruction (i.e. SELECT)
+    * and return the results as a list of records.
+    *
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+      return returnResult (this._connection, query, params);
+   }//end executeQueryAndReturnResult
+
+   private List<List<String>> returnResult (Connection connection, String query, Object[] params) throws SQLException {
+      PreparedStatement stmt = connection.prepareStatement (query);
+      try{
+         bind (stmt, params);
+         ResultSet rs = stmt.executeQuery ();
+         int numCol = rs.getMetaData ().getColumnCount ();
+         List<List<String>> result  = new ArrayList<List<String>>();
+         while (rs.next()){
+            List<String> record = new ArrayList<String>();
+            for (int i=1; i<=numCol; ++i)
+               record.add(rs.getString (i));
+            result.add(record);
+         }//end while
+         return result;
+      }finally{
+         stmt.close ();
+      }
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Method to execute the same parameterized statement once for every row
+    * of parameters as a single JDBC batch.
+    *
+    * @param sql the input SQL string with '?' placeholders
+    * @param rows one array of parameter values per execution
+    * @return the update count of every statement in the batch
+    * @throws java.sql.SQLException when the batch failed
+    */
+   public int[] executeBatch (String sql, List<Object[]> rows) throws SQLException {
+      if (rows.isEmpty())
+         return new int[0];
+      PreparedStatement stmt = this._connection.prepareStatement (sql);
+      try{
+         for (Object[] row : rows){
+            bind (stmt, row);
+            stmt.addBatch ();
+         }
+         int[] counts = stmt.executeBatch ();
+         noteWrite ();
+         return counts;
+      }finally{
+         stmt.close ();
+      }
+   }//end executeBatch
+
+   /**
+    * Method to execute a read-only query and output the results to
+    * standard out.  The query runs on the replica when it is fresh enough
+    * for the current user, otherwise on the primary.
+    *
+    * @param query the input query string
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeReadQueryAndPrintResult (String query) throws SQLException {
+      Connection connection = readConnection ();
+      try{
+         return printResult (connection, query);
+      }catch (SQLException e){
+         if (connection == this._connection)
+            throw e;
+         this.router.failed ();
+         return printResult (this._connection, query);
+      }
+   }//end executeReadQueryAndPrintResult
+
+   /**
+    * Method to execute a read-only parameterized query and return the
+    * results, on the replica when it is fresh enough for the current user.
+    *
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeReadQueryAndReturnResult (String query, Object... params) throws SQLException {
+      Connection connection = readConnection ();
+      try{
+         return returnResult (connection, query, params);
+      }catch (SQLException e){
+         if (connection == this._connection)
+            throw e;
+         this.router.failed ();
+         return returnResult (this._connection, query, params);
+      }
+   }//end executeReadQueryAndReturnResult
+
+   /**
+    * Records that the current user wrote, so their next reads go to the
+    * primary until the replica has caught up.  Every update method calls
+    * it, which covers PlaceOrder, UpdateOrder and the menu changes; it only
+    * sets a flag, so writes pay no extra round trip.
+    */
+   public void noteWrite(){
+      if (this.router == null)
+         return;
+      try{
+         // inside a transaction the write only counts once committed
+         if (!this._connection.getAutoCommit ()){
+            this._wroteInTransaction = true;
+            return;
+         }
+      }catch (SQLException e){
+         // treat it as committed
+      }
+      this.router.wrote (this.user_login);
+   }
+
+   private Connection readConnection(){
+      if (this.router == null)
+         return this._connection;
+      return this.router.route (this.user_login);
+   }
+
+   private static void bind (PreparedStatement stmt, Object[] params) throws SQLException {
+      for (int i = 0; i < params.length; i++)
+         stmt.setObject (i + 1, params[i]);
+   }
+
+   /**
+    * Starts a transaction on the connection.  Every statement issued until
+    * commitTransaction or rollbackTransaction is part of it.
+    *
+    * @throws java.sql.SQLException when the transaction could not be started
+    */
+   public void beginTransaction() throws SQLException {
+      this._connection.setAutoCommit (false);
+   }
+
+   /**
+    * Commits the current transaction and returns to auto-commit mode.
+    *
+    * @throws java.sql.SQLException when the commit failed
+    */
+   public void commitTransaction() throws SQLException {
+      try{
+         this._connection.commit ();
+      }finally{
+         this._connection.setAutoCommit (true);
+      }
+      if (this._wroteInTransaction){
+         this._wroteInTransaction = false;
+         noteWrite ();
+      }
+   }
+
+   /**
+    * Rolls back the current transaction, if any, and returns to auto-commit
+    * mode.
+    */
+   public void rollbackTransaction(){
+      try{
+         if (!this._connection.getAutoCommit ()){
+            this._wroteInTransaction = false;
+            this._connection.rollback ();
+            this._connection.setAutoCommit (true);
+         }
+      }catch (SQLException e){
+         // ignored.
+      }
+   }
+
    /**
     * Method to close the physical connection if it is open.
     */
    public void cleanup(){
+      if (this.statusWriter != null){
+         this.statusWriter.close ();
+      }//end if
+      if (this.router != null){
+         this.router.close ();
+      }//end if
       try{
          if (this._connection != null){
             this._connection.close ();
@@ -230,12 +504,19 @@ public class Cafe {
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      if (args.length == 2 && args[0].equals("-kiosk")) {
+         // browse an exported menu snapshot, no database needed
+         Greeting();
+         Kiosk(new File(args[1]));
+         return;
+      }//end if
+      if (args.length != 3 && args.length != 4) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             Cafe.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [<replica port>]" +
+            "  |  -kiosk <menu snapshot>");
          return;
       }//end if
 
@@ -249,7 +530,16 @@ public class Cafe {
          String dbname = args[0];
          String dbport = args[1];
          String user = args[2];
-         esql = new Cafe (dbname, dbport, user, "");
+         if (args.length == 4)
+            // reads may lag the primary by up to -Dcafe.replica.maxLagMillis
+            esql = new Cafe (dbname, dbport, user, "", args[3], Long.getLong("cafe.replica.maxLagMillis", 5000L));
+         else
+            esql = new Cafe (dbname, dbport, user, "");
+         try{
+            esql.popularity.rebuild(esql);
+         }catch (SQLException e){
+            System.err.println ("Popular items unavailable: " + e.getMessage ());
+         }
 
          boolean keepon = true;
          while(keepon) {
@@ -276,6 +566,10 @@ public class Cafe {
                 System.out.println("3. Place a Order");
                 System.out.println("4. Update a Order");
                 System.out.println("5. Browse Your History");
+                System.out.println("6. Order My Favorites");
+                System.out.println("7. Repeat My Last Order");
+                System.out.println("8. Update Item Status (employee)");
+                System.out.println("10. Compact Old Orders (manager)");
                 System.out.println(".........................");
                 System.out.println("9. Log out");
                 switch (readChoice()){
@@ -284,7 +578,11 @@ public class Cafe {
                    case 3: PlaceOrder(esql); break;
                    case 4: UpdateOrder(esql); break;
                    case 5: BrowseHistory(esql); break;
-                   case 9: usermenu = false; break;
+                   case 6: ReorderFavorites(esql); break;
+                   case 7: RepeatLastOrder(esql); break;
+                   case 8: UpdateItemStatus(esql); break;
+                   case 10: CompactOrders(esql); break;
+                   case 9: usermenu = false; esql.user_favorites = null; break;
                    default : System.out.println("Unrecognized choice!"); break;
                 }
               }
@@ -339,7 +637,7 @@ public class Cafe {
    public static void CreateUser(Cafe esql){
       try{
          System.out.print("\tEnter user login: ");
-         String login = in.readLine(); esql.user_login = login;
+         String login = in.readLine(); esql.user_login = login; esql.user_favorites = null;
          System.out.print("\tEnter user password: ");
          String password = in.readLine();
          System.out.print("\tEnter user phone: ");
@@ -348,9 +646,14 @@ public class Cafe {
 	    String type="Customer";
 	    String favItems="";
 
-				 String query = String.format("INSERT INTO USERS (phoneNum, login, password, favItems, type) VALUES ('%s','%s','%s','%s','%s')", phone, login, password, favItems, type);
+         // inserts nothing, instead of failing, when the login is taken
+         String query = "INSERT INTO USERS (phoneNum, login, password, favItems, type) SELECT ?, ?, ?, ?, ? " +
+                        "WHERE NOT EXISTS (SELECT 1 FROM USERS U WHERE U.login = ?)";
 
-         esql.executeUpdate(query);
+         if (esql.executeUpdate(query, phone, login, esql.auth.hash(password), favItems, type, login) == 0) {
+            System.out.println ("User " + login + " already exists!");
+            return;
+         }
          System.out.println ("User successfully created!");
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -365,14 +668,17 @@ public class Cafe {
    public static String LogIn(Cafe esql){
       try{
          System.out.print("\tEnter user login: ");
-         String login = in.readLine(); esql.user_login = login;
+         String login = in.readLine(); esql.user_login = login; esql.user_favorites = null;
          System.out.print("\tEnter user password: ");
          String password = in.readLine();
 
-         String query = String.format("SELECT * FROM USERS WHERE login = '%s' AND password = '%s'", login, password);
-         int userNum = esql.executeQuery(query);
-	 if (userNum > 0)
-		return login;
+         if (esql.auth.isLocked(login)) {
+            System.out.println ("Too many failed attempts, try again later.");
+            return null;
+         }
+         if (esql.auth.authenticate(esql, login, password) != null)
+            return login;
+         System.out.println ("Invalid login or password.");
          return null;
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -415,20 +721,17 @@ public class Cafe {
             break;
           case 2: 
             System.out.print("\tEnter password: ");
-            set = in.readLine(); 
+            set = esql.auth.hash(in.readLine()); 
             attribute = "password"; 
+            esql.auth.forget(target);
             query = String.format("UPDATE Users SET %s = '%s' WHERE Users.login = '%s';", attribute, set, target); 
             keepon=false;
             //System.out.print(query);
             break;
           case 3: 
-            System.out.print("\tEnter favoriteItem: ");
-            set = in.readLine(); 
-            attribute = "favItems"; 
-            // Ok so I've realized that favItems is 400 char plural while item names are 50 char singular. I was gonna put a checker to make sure the favItem exists, but now I think I'll leave it actually
-            query = String.format("UPDATE Users SET %s = '%s' WHERE Users.login = '%s';", attribute, set, target); 
-            keepon=false;
-            break;
+            // favorites live in FavoriteItems now, one validated row per item
+            ManageFavorites(esql, target);
+            return;
           case 4: 
             System.out.print("\tEnter type: ");
             if(!GetType(esql).equalsIgnoreCase("Manager ")){
@@ -518,7 +821,10 @@ public class Cafe {
          System.out.println("4. Add an item");
          System.out.println("5. Delete an item by its name");
          System.out.println("6. Update an item by its name");
+         System.out.println("8. Import the menu from a CSV file");
+         System.out.println("10. Export the offline menu snapshot");
       }
+      System.out.println("7. Popular now");
       System.out.println("9. Exit");
       System.out.println("----------------------------");
       System.out.println("----------------------------");
@@ -530,7 +836,7 @@ public class Cafe {
          case 1:
             query = "SELECT * FROM Menu;";
             //esql.executeQueryAndPrintResult(query);
-            List<List<String>> list_of_menu = esql.executeQueryAndReturnResult(query);
+            List<List<String>> list_of_menu = esql.executeReadQueryAndReturnResult(query);
             System.out.println("----------------------------");
             for(int i=0; i<list_of_menu.size(); i++){
                
@@ -547,7 +853,7 @@ public class Cafe {
             System.out.print("Type the name of item: ");
             itemName =  in.readLine();
             query = String.format("SELECT * FROM Menu M WHERE M.itemName = '%s';", itemName);
-            List<List<String>> itemDetail = esql.executeQueryAndReturnResult(query);
+            List<List<String>> itemDetail = esql.executeReadQueryAndReturnResult(query);
             System.out.println("----------------------------");
             for(int i=0; i<itemDetail.size(); i++){
                System.out.println("Menu"+ (i+1));
@@ -563,7 +869,7 @@ public class Cafe {
             System.out.print("Type the type you want to find: ");
             itemType =  in.readLine();
             query = String.format("SELECT * FROM Menu M WHERE M.type = '%s';", itemType);
-            List<List<String>> typeDetail = esql.executeQueryAndReturnResult(query);
+            List<List<String>> typeDetail = esql.executeReadQueryAndReturnResult(query);
             System.out.println("----------------------------");
             for(int i=0; i<typeDetail.size(); i++){
                System.out.println("Menu"+ (i+1));
@@ -580,6 +886,28 @@ public class Cafe {
          case 6:
          ManageMenuHelper(esql, selection);
          break;
+
+         case 7:
+         PopularItems(esql);
+         break;
+
+         case 8:
+         if(type.equalsIgnoreCase("Manager"))
+            ImportMenu(esql);
+         else
+            System.out.println("You don't have permission");
+         break;
+
+         case 10:
+         if(type.equalsIgnoreCase("Manager")){
+            System.out.print("Type the path of the snapshot file: ");
+            File snapshot = new File(in.readLine().trim());
+            long version = MenuSnapshot.export(esql, snapshot);
+            System.out.println("Wrote menu snapshot version " + version + " to " + snapshot);
+         }
+         else
+            System.out.println("You don't have permission");
+         break;
          case 9:
          keepon = false;
          break;
@@ -593,6 +921,69 @@ public class Cafe {
      }
   }
 
+  /*
+   * Menu browsing for kiosks, served from a snapshot written by Menu option
+   * 10. The snapshot is swapped for a newer export between screens.
+   **/
+  public static void Kiosk(File file){
+     MenuSnapshot menu;
+     try{
+        menu = MenuSnapshot.open(file);
+     }catch(IOException e){
+        System.err.println ("Cannot open menu snapshot: " + e.getMessage ());
+        return;
+     }
+     try{
+     boolean keepon = true;
+     while(keepon){
+      menu = menu.reloadIfNewer(file);
+      System.out.println("Welcome to The Menu (version " + menu.version() + ")");
+      System.out.println("1. See all menu");
+      System.out.println("2. Search an item by its name");
+      System.out.println("3. Search an item by its type");
+      System.out.println("9. Exit");
+      System.out.println("----------------------------");
+      List<MenuSnapshot.Item> shown = new ArrayList<MenuSnapshot.Item>();
+      switch(readChoice()){
+         case 1:
+            for(int i=0; i<menu.size(); i++)
+               shown.add(menu.get(i));
+            break;
+         case 2:
+            System.out.print("Type the name of item: ");
+            MenuSnapshot.Item item = menu.find(in.readLine());
+            if(item != null)
+               shown.add(item);
+            break;
+         case 3:
+            System.out.print("Type the type you want to find: ");
+            shown = menu.ofType(in.readLine());
+            break;
+         case 9:
+            keepon = false;
+            continue;
+         default:
+            System.out.println("Invalid Number!");
+            continue;
+      }
+      System.out.println("----------------------------");
+      for(int i=0; i<shown.size(); i++){
+         MenuSnapshot.Item item = shown.get(i);
+         System.out.println("Menu"+ (i+1));
+         System.out.println("----------------------------");
+         System.out.println(item.itemName());
+         System.out.println(item.type());
+         System.out.println(item.price());
+         System.out.println(item.description());
+         System.out.println(item.imageURL());
+         System.out.println("----------------------------");
+      }
+     }
+     }catch(IOException e){
+        System.err.println (e.getMessage ());
+     }
+  }
+
   public static void ManageMenuHelper(Cafe esql, int selection){
      try{
      String itemName;
@@ -621,6 +1012,7 @@ public class Cafe {
            query = String.format("INSERT INTO Menu (itemName, type, price, description, imageURL) VALUES ('%s','%s','%d','%s','%s')", itemName, type, price, description, imageURL);
            try{
            esql.executeUpdate(query);
+           esql.popularity.setType(itemName, type);
            }catch(Exception e){
               System.err.println (e.getMessage ());
            }
@@ -630,17 +1022,17 @@ public class Cafe {
            System.out.print("Type the name of item to delete: ");
            itemName = in.readLine();
 
-           query = String.format("DELETE FROM itemStatus where itemName = '%s'", itemName);
+           // the item and the rows referencing it go together or not at all
            try{
-           esql.executeUpdate(query);
-           }catch(Exception e){
-              System.err.println (e.getMessage ());
-           }
-
-           query = String.format("DELETE FROM Menu where itemName = '%s'", itemName);
-           try{
-           esql.executeUpdate(query);
+           esql.beginTransaction();
+           esql.executeUpdate(String.format("DELETE FROM itemStatus where itemName = '%s'", itemName));
+           esql.executeUpdate(String.format("DELETE FROM FavoriteItems where itemName = '%s'", itemName));
+           esql.executeUpdate(String.format("DELETE FROM Menu where itemName = '%s'", itemName));
+           esql.commitTransaction();
+           esql.popularity.setType(itemName, null);
+           esql.user_favorites = null;
            }catch(Exception e){
+              esql.rollbackTransaction();
               System.err.println (e.getMessage ());
            }
            break;
@@ -682,6 +1074,8 @@ public class Cafe {
 
            try{
            esql.executeUpdate(query);
+           if(selectionForUpdate == 1)
+              esql.popularity.setType(itemName, type);
            }catch(Exception e){
               System.err.println (e.getMessage ());
            }
@@ -697,6 +1091,153 @@ public class Cafe {
   }
 
 
+  /*
+   * Applies a ';'-delimited menu file (itemName;type;price;description;imageURL,
+   * the format of data/menu.csv) to the Menu table. The file is diffed
+   * against the current menu and the differences are shown first; once
+   * confirmed, every insert, update and delete is sent as a JDBC batch in a
+   * single transaction.
+   **/
+  public static void ImportMenu(Cafe esql){
+     try{
+        System.out.print("Type the path of the menu CSV file: ");
+        String path = in.readLine().trim();
+
+        // itemName -> {type, price, description, imageURL}
+        Map<String, String[]> wanted = new LinkedHashMap<String, String[]>();
+        BufferedReader csv = new BufferedReader(new FileReader(new File(path)));
+        try{
+           String line;
+           int lineNum = 0;
+           while((line = csv.readLine()) != null){
+              lineNum++;
+              line = line.replace("\r", "");
+              if(line.trim().isEmpty())
+                 continue;
+              String[] f = line.split(";", -1);
+              if(f.length != 5 || f[0].trim().isEmpty()){
+                 System.out.println("Line " + lineNum + ": expected itemName;type;price;description;imageURL");
+                 return;
+              }
+              try{
+                 Float.parseFloat(f[2].trim());
+              }catch(NumberFormatException e){
+                 System.out.println("Line " + lineNum + ": invalid price '" + f[2] + "'");
+                 return;
+              }
+              if(wanted.put(f[0].trim(), new String[] { f[1].trim(), f[2].trim(), f[3].trim(), f[4].trim() }) != null){
+                 System.out.println("Line " + lineNum + ": duplicate item '" + f[0].trim() + "'");
+                 return;
+              }
+           }
+        }finally{
+           csv.close();
+        }
+
+        Map<String, String[]> current = new HashMap<String, String[]>();
+        for(List<String> row : esql.executeQueryAndReturnResult("SELECT M.itemName, M.type, M.price, M.description, M.imageURL FROM Menu M")){
+           current.put(row.get(0).trim(), new String[] {
+              Trim(row.get(1)), Trim(row.get(2)), Trim(row.get(3)), Trim(row.get(4)) });
+        }
+
+        List<Object[]> inserts = new ArrayList<Object[]>();
+        List<Object[]> updates = new ArrayList<Object[]>();
+        List<Object[]> deletes = new ArrayList<Object[]>();
+        System.out.println("----------------------------");
+        for(Map.Entry<String, String[]> e : wanted.entrySet()){
+           String name = e.getKey();
+           String[] w = e.getValue();
+           String[] c = current.get(name);
+           Float price = Float.valueOf(w[1]);
+           if(c == null){
+              System.out.println("+ " + name + " (" + w[0] + ", " + w[1] + ")");
+              inserts.add(new Object[] { name, w[0], price, w[2], w[3] });
+           }else if(!w[0].equals(c[0]) || !price.equals(Float.valueOf(c[1])) || !w[2].equals(c[2]) || !w[3].equals(c[3])){
+              System.out.println("~ " + name + DescribeChange("type", c[0], w[0])
+                 + (price.equals(Float.valueOf(c[1])) ? "" : " price " + c[1] + " -> " + w[1])
+                 + DescribeChange("description", c[2], w[2]) + DescribeChange("imageURL", c[3], w[3]));
+              updates.add(new Object[] { w[0], price, w[2], w[3], name });
+           }
+        }
+        for(String name : current.keySet()){
+           if(!wanted.containsKey(name)){
+              System.out.println("- " + name);
+              deletes.add(new Object[] { name });
+           }
+        }
+        System.out.println("----------------------------");
+        System.out.println(inserts.size() + " to add, " + updates.size() + " to update, " + deletes.size() + " to delete.");
+        if(inserts.isEmpty() && updates.isEmpty() && deletes.isEmpty())
+           return;
+        if(!deletes.isEmpty())
+           System.out.println("Deleting an item also deletes its order lines and favorites.");
+        System.out.print("Apply these changes? (y/n): ");
+        if(!in.readLine().trim().equalsIgnoreCase("y")){
+           System.out.println("Dry run only, nothing changed.");
+           return;
+        }
+
+        try{
+           esql.beginTransaction();
+           esql.executeBatch("DELETE FROM ItemStatus WHERE itemName = ?", deletes);
+           esql.executeBatch("DELETE FROM FavoriteItems WHERE itemName = ?", deletes);
+           esql.executeBatch("DELETE FROM Menu WHERE itemName = ?", deletes);
+           esql.executeBatch("INSERT INTO Menu (itemName, type, price, description, imageURL) VALUES (?, ?, ?, ?, ?)", inserts);
+           esql.executeBatch("UPDATE Menu SET type = ?, price = ?, description = ?, imageURL = ? WHERE itemName = ?", updates);
+           esql.commitTransaction();
+        }catch(SQLException e){
+           esql.rollbackTransaction();
+           System.err.println (e.getMessage ());
+           System.out.println("Import failed, nothing changed.");
+           return;
+        }
+        // one refresh for the whole import instead of one per item
+        esql.popularity.reloadTypes(esql);
+        esql.user_favorites = null;
+        System.out.println("Menu updated.");
+     }catch(Exception e){
+        System.err.println (e.getMessage ());
+     }
+  }
+
+  private static String Trim(String value){
+     return value == null ? "" : value.trim();
+  }
+
+  private static String DescribeChange(String attribute, String from, String to){
+     return from.equals(to) ? "" : " " + attribute + " '" + from + "' -> '" + to + "'";
+  }
+
+  /*
+   * Shows the best-selling items of a type from the in-memory counts, so
+   * kiosks can show it on every view without querying ItemStatus.
+   **/
+  public static void PopularItems(Cafe esql){
+     try{
+        System.out.print("Type the type of item (empty for all): ");
+        String itemType = in.readLine();
+        System.out.println("1. Last hour");
+        System.out.println("2. Last day");
+        System.out.println("3. Last week");
+        int window;
+        switch(readChoice()){
+           case 1: window = PopularityTracker.LAST_HOUR; break;
+           case 2: window = PopularityTracker.LAST_DAY; break;
+           default: window = PopularityTracker.LAST_WEEK; break;
+        }
+        List<String> top = esql.popularity.topK(itemType, window, 5);
+        System.out.println("----------------------------");
+        if(top.isEmpty())
+           System.out.println("Nothing sold yet.");
+        for(int i=0; i<top.size(); i++)
+           System.out.println((i+1) + ". " + top.get(i) + " (" + esql.popularity.count(top.get(i), window) + " sold)");
+        System.out.println("----------------------------");
+     }catch(IOException e){
+        System.err.println (e.getMessage ());
+     }
+  }
+
+
   public static void PlaceOrder(Cafe esql){
     String set = "";
     String query = "";
@@ -716,6 +1257,7 @@ public class Cafe {
           query = String.format("INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments) VALUES (LASTVAL(), '%s', NOW(), 'Hasn''t started', '')", set);
           //System.out.println(query);
           esql.executeUpdate(query);
+          esql.popularity.record(set);
           query = String.format("UPDATE Orders SET total = total + (SELECT MAX(M.price) FROM Menu M WHERE M.itemName = '%s') WHERE orderid=LASTVAL()", set);
           //System.out.println(query);
           esql.executeUpdate(query);
@@ -742,6 +1284,172 @@ public class Cafe {
   }
 
 
+  // Favorites
+
+  /*
+   * Returns the favorite items of the given login. The current user's list
+   * is kept in esql.user_favorites so it is only read once per session.
+   **/
+  public static List<String> GetFavorites(Cafe esql, String login) throws SQLException {
+    boolean self = login.equals(esql.user_login);
+    if (self && esql.user_favorites != null)
+      return esql.user_favorites;
+
+    List<String> favorites = new ArrayList<String>();
+    List<List<String>> result = esql.executeQueryAndReturnResult(
+      "SELECT F.itemName FROM FavoriteItems F WHERE F.login = ? ORDER BY F.itemName", login);
+    for (List<String> row : result)
+      favorites.add(row.get(0).trim());
+    if (self)
+      esql.user_favorites = favorites;
+    return favorites;
+  }
+
+  public static void ManageFavorites(Cafe esql, String target){
+    try {
+      boolean keepon = true;
+      while (keepon) {
+        System.out.println("FAVORITES ["+target+"]");
+        System.out.println("---------");
+        List<String> favorites = GetFavorites(esql, target);
+        if (favorites.isEmpty())
+          System.out.println("(none)");
+        for (String item : favorites)
+          System.out.println(" - " + item);
+        System.out.println("1. add an item");
+        System.out.println("2. remove an item");
+        System.out.println(".........................");
+        System.out.println("9. exit");
+
+        String itemName;
+        switch (readChoice()){
+          case 1:
+            System.out.print("\tEnter item name: ");
+            itemName = in.readLine().trim();
+            if (!ItemExists(esql, itemName)) {
+              System.out.println("ERROR: No such item on the menu.");
+            } else if (favorites.contains(itemName)) {
+              System.out.println("Already a favorite.");
+            } else {
+              esql.executeUpdate("INSERT INTO FavoriteItems (login, itemName) VALUES (?, ?)", target, itemName);
+            }
+            break;
+          case 2:
+            System.out.print("\tEnter item name: ");
+            itemName = in.readLine().trim();
+            if (esql.executeUpdate("DELETE FROM FavoriteItems WHERE login = ? AND itemName = ?", target, itemName) == 0)
+              System.out.println("ERROR: Not a favorite.");
+            break;
+          case 9:
+            keepon = false;
+            break;
+          default:
+            System.out.println("Unrecognized choice!");
+            break;
+        }
+        if (target.equals(esql.user_login))
+          esql.user_favorites = null;
+      }
+    } catch (Exception e) {
+      System.err.println (e.getMessage ());
+    }
+  }
+
+  public static boolean ItemExists(Cafe esql, String itemName){
+    try {
+      return !esql.executeQueryAndReturnResult("SELECT 1 FROM Menu M WHERE M.itemName = ?", itemName).isEmpty();
+    } catch (Exception e) {
+      System.err.println (e.getMessage ());
+    }
+    return false;
+  }
+
+  public static void ReorderFavorites(Cafe esql){
+    try {
+      List<String> favorites = GetFavorites(esql, esql.user_login);
+      if (favorites.isEmpty()) {
+        System.out.println("You have no favorite items yet. Add some from Update Profile.");
+        return;
+      }
+      PlaceOrderForItems(esql, favorites);
+    } catch (Exception e) {
+      System.err.println (e.getMessage ());
+    }
+  }
+
+  public static void RepeatLastOrder(Cafe esql){
+    try {
+      List<List<String>> result = esql.executeQueryAndReturnResult(
+        "SELECT I.itemName FROM ItemStatus I WHERE I.orderid = (SELECT MAX(O.orderid) FROM Orders O WHERE O.login = ?)",
+        esql.user_login);
+      if (result.isEmpty()) {
+        System.out.println("You have no previous order to repeat.");
+        return;
+      }
+      List<String> items = new ArrayList<String>();
+      for (List<String> row : result)
+        items.add(row.get(0).trim());
+      PlaceOrderForItems(esql, items);
+    } catch (Exception e) {
+      System.err.println (e.getMessage ());
+    }
+  }
+
+  /*
+   * Places a complete order for the given items in one transaction: the
+   * Orders row, every ItemStatus row (as one batch) and the total are
+   * committed together or not at all. Items no longer on the menu are skipped.
+   * @return the new orderid, or -1 when nothing could be ordered
+   **/
+  public static int PlaceOrderForItems(Cafe esql, List<String> items) throws SQLException {
+    List<Object[]> rows = new ArrayList<Object[]>();
+    List<String> seen = new ArrayList<String>();
+    for (String item : items) {
+      // (orderid, itemName) is the ItemStatus key, so each item once
+      if (!seen.contains(item)) {
+        seen.add(item);
+        rows.add(new Object[] { item });
+      }
+    }
+
+    try {
+      esql.beginTransaction();
+      esql.executeUpdate("INSERT INTO Orders (orderid, login, paid, timeStampRecieved, total) VALUES (DEFAULT, ?, false, NOW(), 0)", esql.user_login);
+      int[] counts = esql.executeBatch(
+        "INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments) " +
+        "SELECT currval('orders_orderid_seq'), M.itemName, NOW(), 'Hasn''t started', '' FROM Menu M WHERE M.itemName = ?", rows);
+      List<String> placedItems = new ArrayList<String>();
+      for (int i = 0; i < counts.length; i++) {
+        if (counts[i] > 0)
+          placedItems.add(seen.get(i));
+        else
+          System.out.println("Skipping " + seen.get(i) + ": no longer on the menu.");
+      }
+      int placed = placedItems.size();
+      if (placed == 0) {
+        esql.rollbackTransaction();
+        System.out.println("None of the items are on the menu, no order placed.");
+        return -1;
+      }
+      esql.executeUpdate(
+        "UPDATE Orders SET total = (SELECT SUM(M.price) FROM ItemStatus I, Menu M " +
+        "WHERE I.itemName = M.itemName AND I.orderid = currval('orders_orderid_seq')) " +
+        "WHERE orderid = currval('orders_orderid_seq')");
+      int orderid = esql.getCurrSeqVal("orders_orderid_seq");
+      esql.commitTransaction();
+      for (String item : placedItems)
+        esql.popularity.record(item);
+
+      System.out.println("Order " + orderid + " placed with " + placed + " item(s).");
+      System.out.println("Total: " + GetOrderTotal(esql, orderid));
+      return orderid;
+    } catch (SQLException e) {
+      esql.rollbackTransaction();
+      throw e;
+    }
+  }
+
+
   public static void UpdateOrder(Cafe esql){
      int orderid;
      String itemName;
@@ -788,7 +1496,56 @@ public class Cafe {
         System.out.println("Error!");
      }
   }
-   // Helper function
+   /*
+   * Lets kitchen staff step the items of an order through their statuses.
+   * Changes are queued in esql.statusWriter and written in batches, so the
+   * list shows queued statuses over what the table holds.
+   **/
+  public static void UpdateItemStatus(Cafe esql){
+     String type = GetType(esql).replaceAll("\\s", "");
+     if(!type.equalsIgnoreCase("Manager") && !type.equalsIgnoreCase("Employee")){
+        System.out.println("You don't have permission");
+        return;
+     }
+     try{
+        System.out.print("Input the orderid: ");
+        int orderid = Integer.parseInt(in.readLine());
+        while(true){
+           List<List<String>> items = esql.executeQueryAndReturnResult(
+              "SELECT I.itemName, I.status FROM ItemStatus I WHERE I.orderid = ? ORDER BY I.itemName", orderid);
+           if(items.isEmpty()){
+              System.out.println("No items for this order.");
+              return;
+           }
+           System.out.println("----------------------------");
+           for(int i=0; i<items.size(); i++){
+              String itemName = items.get(i).get(0).trim();
+              String status = esql.statusWriter.pendingStatus(orderid, itemName);
+              System.out.println((i+1) + ". " + itemName + "\t" + (status != null ? status : Trim(items.get(i).get(1))));
+           }
+           System.out.println("----------------------------");
+           System.out.print("Item number to update (0 to quit): ");
+           int choice = Integer.parseInt(in.readLine());
+           if(choice < 1 || choice > items.size())
+              return;
+           System.out.println("1. Hasn't started");
+           System.out.println("2. Started");
+           System.out.println("3. Finished");
+           String status;
+           switch(readChoice()){
+              case 1: status = "Hasn't started"; break;
+              case 2: status = "Started"; break;
+              case 3: status = "Finished"; break;
+              default: System.out.println("Invalid Number!"); continue;
+           }
+           esql.statusWriter.submit(orderid, items.get(choice-1).get(0), status);
+        }
+     }catch(Exception e){
+        System.err.println (e.getMessage ());
+     }
+  }
+
+  // Helper function
    public static String GetPaidType(Cafe esql, int orderid){
     try {
       String query = String.format("SELECT O.paid FROM Orders O WHERE O.orderid = '%d';", orderid);
@@ -828,13 +1585,135 @@ public class Cafe {
     }
     return 0.0;
   }
+  /*
+   * Rolls paid orders older than the retention age into DailySummary,
+   * DailyItemSummary and DailyCustomerSummary and deletes their Orders and
+   * ItemStatus rows. Unpaid orders are kept until they are paid. Work is
+   * done in short transactions of at most batchSize orders with a pause
+   * between them, so live orders are never held up: rows another session
+   * has locked are skipped and picked up by a later run.
+   **/
+  public static void CompactOrders(Cafe esql){
+     String type = GetType(esql).replaceAll("\\s", "");
+     if(!type.equalsIgnoreCase("Manager")){
+        System.out.println("You don't have permission");
+        return;
+     }
+     try{
+        System.out.print("Keep orders of the last how many days (at least 7): ");
+        int ageDays = Math.max(7, Integer.parseInt(in.readLine().trim()));
+        System.out.print("Orders per batch (e.g. 1000): ");
+        int batchSize = Math.max(1, Integer.parseInt(in.readLine().trim()));
+        System.out.print("Pause between batches in ms (e.g. 200): ");
+        long pauseMillis = Math.max(0, Long.parseLong(in.readLine().trim()));
+
+        int total = 0;
+        List<Integer> skipped = new ArrayList<Integer>();
+        while(true){
+           int done;
+           int before = skipped.size();
+           try{
+              done = CompactBatch(esql, ageDays, batchSize, skipped);
+           }catch(SQLException e){
+              // nothing to skip past means retrying would time out again
+              if(!IsLockTimeout(e) || skipped.size() == before)
+                 throw e;
+              // the batch's orders are left for a later run, go on with the rest
+              System.out.println("Skipped a batch whose rows are in use: " + e.getMessage());
+              Thread.sleep(Math.max(pauseMillis, 1000));
+              continue;
+           }
+           total += done;
+           if(done < batchSize)
+              break;
+           System.out.println(total + " orders compacted...");
+           Thread.sleep(pauseMillis);
+        }
+        System.out.println(total + " orders older than " + ageDays + " days compacted"
+           + (skipped.isEmpty() ? "." : ", " + skipped.size() + " left for a later run."));
+     }catch(Exception e){
+        System.err.println (e.getMessage ());
+     }
+  }
+
+  /*
+   * Compacts one batch of old orders in one transaction. Orders in skipped
+   * are left alone; when the batch times out on a lock its orders are added
+   * to skipped so the next batch moves on.
+   * @return the number of orders compacted
+   **/
+  public static int CompactBatch(Cafe esql, int ageDays, int batchSize, List<Integer> skipped) throws SQLException {
+     List<Integer> orderids = new ArrayList<Integer>();
+     try{
+        esql.beginTransaction();
+        // give up on a locked row quickly instead of queueing behind live traffic
+        esql.executeUpdate("SET LOCAL lock_timeout = '2s'");
+        List<List<String>> old = esql.executeQueryAndReturnResult(
+           "SELECT O.orderid FROM Orders O WHERE O.paid AND O.timeStampRecieved < NOW() - ? * INTERVAL '1 day' " +
+           (skipped.isEmpty() ? "" : "AND O.orderid NOT IN " + IdList(skipped) + " ") +
+           "ORDER BY O.timeStampRecieved LIMIT ? FOR UPDATE SKIP LOCKED", ageDays, batchSize);
+        if(old.isEmpty()){
+           esql.commitTransaction();
+           return 0;
+        }
+        for(List<String> row : old)
+           orderids.add(Integer.parseInt(row.get(0).trim()));
+        String batch = IdList(orderids);
+
+        esql.executeUpdate(
+           "INSERT INTO DailySummary (day, orders, revenue) " +
+           "SELECT CAST(O.timeStampRecieved AS date), COUNT(*), SUM(O.total) FROM Orders O " +
+           "WHERE O.orderid IN " + batch + " GROUP BY CAST(O.timeStampRecieved AS date) " +
+           "ON CONFLICT (day) DO UPDATE SET orders = DailySummary.orders + EXCLUDED.orders, " +
+           "revenue = DailySummary.revenue + EXCLUDED.revenue");
+        esql.executeUpdate(
+           "INSERT INTO DailyItemSummary (day, itemName, quantity) " +
+           "SELECT CAST(O.timeStampRecieved AS date), I.itemName, COUNT(*) " +
+           "FROM Orders O JOIN ItemStatus I ON I.orderid = O.orderid " +
+           "WHERE O.orderid IN " + batch + " GROUP BY CAST(O.timeStampRecieved AS date), I.itemName " +
+           "ON CONFLICT (day, itemName) DO UPDATE SET quantity = DailyItemSummary.quantity + EXCLUDED.quantity");
+        esql.executeUpdate(
+           "INSERT INTO DailyCustomerSummary (login, day, orders, total) " +
+           "SELECT O.login, CAST(O.timeStampRecieved AS date), COUNT(*), SUM(O.total) FROM Orders O " +
+           "WHERE O.orderid IN " + batch + " AND O.login IS NOT NULL " +
+           "GROUP BY O.login, CAST(O.timeStampRecieved AS date) " +
+           "ON CONFLICT (login, day) DO UPDATE SET orders = DailyCustomerSummary.orders + EXCLUDED.orders, " +
+           "total = DailyCustomerSummary.total + EXCLUDED.total");
+        esql.executeUpdate("DELETE FROM ItemStatus WHERE orderid IN " + batch);
+        esql.executeUpdate("DELETE FROM Orders WHERE orderid IN " + batch);
+        esql.commitTransaction();
+        return old.size();
+     }catch(SQLException e){
+        esql.rollbackTransaction();
+        if(IsLockTimeout(e))
+           skipped.addAll(orderids);
+        throw e;
+     }
+  }
+
+  private static String IdList(List<Integer> ids){
+     StringBuilder list = new StringBuilder("(");
+     for(Integer id : ids)
+        list.append(list.length() == 1 ? "" : ",").append(id);
+     return list.append(")").toString();
+  }
+
+  /*
+   * True for Postgres' lock_not_available (55P03), raised when lock_timeout
+   * expires. Older drivers report no SQLState, so the message is checked too.
+   **/
+  private static boolean IsLockTimeout(SQLException e){
+     return "55P03".equals(e.getSQLState())
+        || (e.getMessage() != null && e.getMessage().contains("lock timeout"));
+  }
+
   public static void BrowseHistory(Cafe esql){
      try{
         String memberType = GetType(esql).replaceAll("\\s", "");
         if(memberType.equals("Manager")||memberType.equals("Employee")){
          System.out.println("Manager or Employee");
          String query = String.format("SELECT * FROM Orders O WHERE O.timeStampRecieved BETWEEN NOW() - INTERVAL '24 HOURS' AND NOW() ORDER BY O.timeStampRecieved DESC");
-         esql.executeQueryAndPrintResult(query);
+         esql.executeReadQueryAndPrintResult(query);
 
         }
         
@@ -843,12 +1722,1065 @@ public class Cafe {
          System.out.println(name);
          //SELECT * FROM Orders O WHERE O.login=name ORDER BY timeStampRecieved DESC LIMIT 5;
          String query = String.format("SELECT * FROM Orders O WHERE O.login='%s' ORDER BY timeStampRecieved DESC LIMIT 5;", name);
-         esql.executeQueryAndPrintResult(query);
+         int shown = esql.executeReadQueryAndPrintResult(query);
+
+         // orders past the retention age only survive as daily summaries
+         if(shown < 5){
+            query = String.format("SELECT S.day, S.orders, S.total FROM DailyCustomerSummary S WHERE S.login='%s' ORDER BY S.day DESC LIMIT %d;", name, 5 - shown);
+            List<List<String>> older = esql.executeReadQueryAndReturnResult(query);
+            if(!older.isEmpty()){
+               System.out.println("Older orders (daily totals)");
+               System.out.println("day\torders\ttotal\t");
+               for(List<String> day : older)
+                  System.out.println(day.get(0) + "\t" + day.get(1) + "\t" + day.get(2) + "\t");
+            }
+         }
         
      }catch(Exception e){
       System.err.println (e.getMessage ());
      }
   }
 
+   /**
+    * Keeps how many of each item were ordered over the last hour, day and
+    * week so that best-sellers can be listed without aggregating the whole
+    * ItemStatus table.  The counts are rebuilt once from the database on
+    * startup and then fed by every item the order-placement path inserts.
+    *
+    * Each item has a ring of 60 one-minute buckets (for the hour window) and
+    * a ring of 168 one-hour buckets (for the day and week windows).  A
+    * bucket remembers which minute or hour it holds, so stale buckets are
+    * recycled lazily instead of by a timer.
+    */
+   static class PopularityTracker {
+
+      static final int LAST_HOUR = 0;
+      static final int LAST_DAY = 1;
+      static final int LAST_WEEK = 2;
+
+      private static final long MINUTE = 60L * 1000L;
+      private static final long HOUR = 60L * MINUTE;
+      private static final int MINUTE_SLOTS = 60;
+      private static final int HOUR_SLOTS = 24 * 7;
+
+      private static class Counts {
+         final long[] minutes = new long[MINUTE_SLOTS];
+         final long[] minuteOf = new long[MINUTE_SLOTS];
+         final long[] hours = new long[HOUR_SLOTS];
+         final long[] hourOf = new long[HOUR_SLOTS];
+
+         void add(long millis, long n, long now){
+            long minute = millis / MINUTE;
+            if (minute > now / MINUTE - MINUTE_SLOTS){
+               int slot = (int) (minute % MINUTE_SLOTS);
+               if (minuteOf[slot] != minute){
+                  minuteOf[slot] = minute;
+                  minutes[slot] = 0;
+               }
+               minutes[slot] += n;
+            }
+            long hour = millis / HOUR;
+            if (hour > now / HOUR - HOUR_SLOTS){
+               int slot = (int) (hour % HOUR_SLOTS);
+               if (hourOf[slot] != hour){
+                  hourOf[slot] = hour;
+                  hours[slot] = 0;
+               }
+               hours[slot] += n;
+            }
+         }
+
+         long sum(int window, long now){
+            long total = 0;
+            if (window == LAST_HOUR){
+               long oldest = now / MINUTE - MINUTE_SLOTS;
+               for (int i = 0; i < MINUTE_SLOTS; i++)
+                  if (minuteOf[i] > oldest)
+                     total += minutes[i];
+            }else{
+               long oldest = now / HOUR - (window == LAST_DAY ? 24 : HOUR_SLOTS);
+               for (int i = 0; i < HOUR_SLOTS; i++)
+                  if (hourOf[i] > oldest)
+                     total += hours[i];
+            }
+            return total;
+         }
+      }
+
+      // itemName -> sales buckets, and itemName -> Menu.type
+      private final Map<String, Counts> counts = new HashMap<String, Counts>();
+      private final Map<String, String> types = new HashMap<String, String>();
+
+      /**
+       * Reloads item types from Menu and the last week of sales from
+       * Orders/ItemStatus.  The week is read through index1 on
+       * Orders.timeStampRecieved, grouped by minute on the server.
+       *
+       * @param esql the database connection
+       * @throws java.sql.SQLException when failed to execute the queries
+       */
+      synchronized void rebuild(Cafe esql) throws SQLException {
+         counts.clear();
+         reloadTypes(esql);
+
+         long now = System.currentTimeMillis();
+         List<List<String>> sales = esql.executeReadQueryAndReturnResult(
+            "SELECT I.itemName, date_trunc('minute', O.timeStampRecieved), COUNT(*) " +
+            "FROM Orders O, ItemStatus I " +
+            "WHERE I.orderid = O.orderid AND O.timeStampRecieved > NOW() - INTERVAL '7 days' " +
+            "GROUP BY I.itemName, date_trunc('minute', O.timeStampRecieved)");
+         for (List<String> row : sales)
+            countsOf(row.get(0).trim()).add(Timestamp.valueOf(row.get(1)).getTime(), Long.parseLong(row.get(2)), now);
+      }
+
+      /**
+       * Reloads the item to type mapping from Menu after bulk menu changes,
+       * dropping the counts of items that are gone.
+       *
+       * @param esql the database connection
+       * @throws java.sql.SQLException when failed to execute the query
+       */
+      synchronized void reloadTypes(Cafe esql) throws SQLException {
+         types.clear();
+         for (List<String> row : esql.executeQueryAndReturnResult("SELECT M.itemName, M.type FROM Menu M"))
+            types.put(row.get(0).trim(), row.get(1).trim());
+         counts.keySet().retainAll(types.keySet());
+      }
+
+      /**
+       * Records one sale of an item, called once per inserted ItemStatus row.
+       */
+      synchronized void record(String itemName){
+         long now = System.currentTimeMillis();
+         countsOf(itemName.trim()).add(now, 1, now);
+      }
+
+      /**
+       * Keeps the item to type mapping in step with Menu changes.  A null
+       * type removes the item.
+       */
+      synchronized void setType(String itemName, String type){
+         if (type == null){
+            types.remove(itemName.trim());
+            counts.remove(itemName.trim());
+         }else{
+            types.put(itemName.trim(), type.trim());
+         }
+      }
+
+      /**
+       * @return how many of the item were ordered within the window
+       */
+      synchronized long count(String itemName, int window){
+         Counts c = counts.get(itemName.trim());
+         return c == null ? 0 : c.sum(window, System.currentTimeMillis());
+      }
+
+      /**
+       * Returns the k best-selling items of a Menu type within the window,
+       * best first.  Items that did not sell are left out.
+       *
+       * @param type the Menu type, or null or empty for every type
+       * @param window one of LAST_HOUR, LAST_DAY or LAST_WEEK
+       * @param k the maximum number of items returned
+       * @return the item names, best-selling first
+       */
+      synchronized List<String> topK(String type, int window, int k){
+         final long now = System.currentTimeMillis();
+         final Map<String, Long> sums = new HashMap<String, Long>();
+         // min-heap on the count keeps only the k best seen so far
+         PriorityQueue<String> best = new PriorityQueue<String>(k + 1, new Comparator<String>() {
+            public int compare(String a, String b){
+               int byCount = sums.get(a).compareTo(sums.get(b));
+               return byCount != 0 ? byCount : b.compareTo(a);
+            }
+         });
+         for (Map.Entry<String, Counts> e : counts.entrySet()){
+            String itemType = types.get(e.getKey());
+            if (itemType == null || (type != null && type.trim().length() > 0 && !itemType.equalsIgnoreCase(type.trim())))
+               continue;
+            long sum = e.getValue().sum(window, now);
+            if (sum == 0)
+               continue;
+            sums.put(e.getKey(), sum);
+            best.add(e.getKey());
+            if (best.size() > k)
+               best.poll();
+         }
+         List<String> result = new ArrayList<String>();
+         while (!best.isEmpty())
+            result.add(0, best.poll());
+         return result;
+      }
+
+      private Counts countsOf(String itemName){
+         Counts c = counts.get(itemName);
+         if (c == null){
+            c = new Counts();
+            counts.put(itemName, c);
+         }
+         return c;
+      }
+   }//end PopularityTracker
+
+   /**
+    * Read-only copy of the Menu table in a compact binary file, so a kiosk
+    * can browse the menu without a database connection.  The file is
+    * memory-mapped and items are read straight out of the mapping.
+    *
+    * Layout (big-endian):
+    * <pre>
+    *   int    magic 'CAFM'
+    *   short  format version
+    *   short  reserved
+    *   long   snapshot version, increases with every export
+    *   int    item count
+    *   int    offset of the name index
+    *   items  name, type, description, imageURL as (u16 length, UTF-8
+    *          bytes) and price as a float, in that order
+    *   index  item count record offsets, sorted by the UTF-8 bytes of the
+    *          name, for binary search
+    * </pre>
+    * Exports are written to a temporary file and renamed over the old one,
+    * so a kiosk that still maps the previous snapshot keeps a consistent
+    * view until it swaps to the new version.
+    */
+   static class MenuSnapshot {
+
+      static final int MAGIC = 0x4341464D;
+      static final short FORMAT = 1;
+      static final int HEADER_SIZE = 24;
+
+      private final MappedByteBuffer buf;
+      private final long version;
+      private final int count;
+      private final int indexOffset;
+
+      private MenuSnapshot(MappedByteBuffer buf) throws IOException {
+         if (buf.capacity() < HEADER_SIZE || buf.getInt(0) != MAGIC)
+            throw new IOException("Not a menu snapshot");
+         if (buf.getShort(4) != FORMAT)
+            throw new IOException("Unsupported menu snapshot format " + buf.getShort(4));
+         this.buf = buf;
+         this.version = buf.getLong(8);
+         this.count = buf.getInt(16);
+         this.indexOffset = buf.getInt(20);
+
+         // check every offset once so lookups can never read past the file
+         if (count < 0 || indexOffset < HEADER_SIZE || indexOffset + 4L * count > buf.capacity())
+            throw new IOException("Corrupt menu snapshot: bad index");
+         for (int i = 0; i < count; i++){
+            int at = buf.getInt(indexOffset + 4 * i);
+            if (at < HEADER_SIZE || at >= indexOffset)
+               throw new IOException("Corrupt menu snapshot: bad record offset");
+            for (int field = 0; field < 4; field++){
+               if (at + 2 > indexOffset)
+                  throw new IOException("Corrupt menu snapshot: truncated record");
+               at += 2 + (buf.getShort(at) & 0xFFFF);
+            }
+            if (at + 4 > indexOffset)
+               throw new IOException("Corrupt menu snapshot: truncated record");
+         }
+      }
+
+      /**
+       * Maps a snapshot file.
+       *
+       * @param file the snapshot written by export
+       * @return the mapped snapshot
+       * @throws java.io.IOException when the file is missing or not a snapshot
+       */
+      static MenuSnapshot open(File file) throws IOException {
+         RandomAccessFile raf = new RandomAccessFile(file, "r");
+         try{
+            // the mapping stays valid after the channel is closed
+            return new MenuSnapshot(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+         }finally{
+            raf.close();
+         }
+      }
+
+      /**
+       * Returns a newer snapshot when the file has been replaced by a later
+       * export, otherwise the current one.  Only the header is read to
+       * decide.
+       */
+      MenuSnapshot reloadIfNewer(File file){
+         try{
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            long onDisk;
+            try{
+               if (raf.length() < HEADER_SIZE || raf.readInt() != MAGIC)
+                  return this;
+               raf.seek(8);
+               onDisk = raf.readLong();
+            }finally{
+               raf.close();
+            }
+            return onDisk > version ? open(file) : this;
+         }catch (IOException e){
+            // keep serving the snapshot already mapped
+            return this;
+         }
+      }
+
+      long version(){
+         return version;
+      }
+
+      int size(){
+         return count;
+      }
+
+      /**
+       * @return the i-th item in name order
+       */
+      Item get(int i){
+         return new Item(buf.getInt(indexOffset + 4 * i));
+      }
+
+      /**
+       * Looks an item up by exact name with a binary search over the index.
+       *
+       * @return the item, or null when it is not on the menu
+       */
+      Item find(String itemName){
+         byte[] key = utf8(itemName.trim());
+         int lo = 0, hi = count - 1;
+         while (lo <= hi){
+            int mid = (lo + hi) >>> 1;
+            int offset = buf.getInt(indexOffset + 4 * mid);
+            int cmp = compareString(offset, key);
+            if (cmp < 0)
+               lo = mid + 1;
+            else if (cmp > 0)
+               hi = mid - 1;
+            else
+               return new Item(offset);
+         }
+         return null;
+      }
+
+      /**
+       * @return every item of the given type, in name order
+       */
+      List<Item> ofType(String type){
+         byte[] key = utf8(type.trim());
+         List<Item> result = new ArrayList<Item>();
+         for (int i = 0; i < count; i++){
+            Item item = get(i);
+            if (compareString(item.skip(item.offset, 1), key) == 0)
+               result.add(item);
+         }
+         return result;
+      }
+
+      // compares the string stored at offset with key, byte by byte
+      private int compareString(int offset, byte[] key){
+         int len = buf.getShort(offset) & 0xFFFF;
+         int n = Math.min(len, key.length);
+         for (int i = 0; i < n; i++){
+            int a = buf.get(offset + 2 + i) & 0xFF, b = key[i] & 0xFF;
+            if (a != b)
+               return a - b;
+         }
+         return len - key.length;
+      }
+
+      /**
+       * One menu item, decoded from the mapping on access.
+       */
+      class Item {
+         private final int offset;
+
+         Item(int offset){
+            this.offset = offset;
+         }
+
+         String itemName(){ return string(offset); }
+         String type(){ return string(skip(offset, 1)); }
+         String description(){ return string(skip(offset, 2)); }
+         String imageURL(){ return string(skip(offset, 3)); }
+         float price(){ return buf.getFloat(skip(offset, 4)); }
+
+         private int skip(int at, int strings){
+            for (int i = 0; i < strings; i++)
+               at += 2 + (buf.getShort(at) & 0xFFFF);
+            return at;
+         }
+
+         private String string(int at){
+            byte[] bytes = new byte[buf.getShort(at) & 0xFFFF];
+            for (int i = 0; i < bytes.length; i++)
+               bytes[i] = buf.get(at + 2 + i);
+            return new String(bytes, UTF8);
+         }
+      }
+
+      /**
+       * Writes the current Menu table to file as a new snapshot version.
+       *
+       * @param esql the database connection
+       * @param file where to write the snapshot
+       * @return the version written
+       * @throws java.sql.SQLException when failed to read the menu
+       * @throws java.io.IOException when failed to write the file
+       */
+      static long export(Cafe esql, File file) throws SQLException, IOException {
+         return write(esql.executeReadQueryAndReturnResult(
+            "SELECT M.itemName, M.type, M.price, M.description, M.imageURL FROM Menu M"), file);
+      }
+
+      static long write(List<List<String>> menu, File file) throws IOException {
+         // encode the records and keep them sorted by name bytes for the index
+         List<byte[][]> rows = new ArrayList<byte[][]>();
+         List<Float> prices = new ArrayList<Float>();
+         for (List<String> row : menu){
+            rows.add(new byte[][] { utf8(Trim(row.get(0))), utf8(Trim(row.get(1))), utf8(Trim(row.get(3))), utf8(Trim(row.get(4))) });
+            prices.add(Float.valueOf(row.get(2)));
+         }
+         Integer[] order = new Integer[rows.size()];
+         for (int i = 0; i < order.length; i++)
+            order[i] = i;
+         final List<byte[][]> sorted = rows;
+         Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b){
+               byte[] x = sorted.get(a)[0], y = sorted.get(b)[0];
+               for (int i = 0; i < Math.min(x.length, y.length); i++)
+                  if (x[i] != y[i])
+                     return (x[i] & 0xFF) - (y[i] & 0xFF);
+               return x.length - y.length;
+            }
+         });
+
+         int size = HEADER_SIZE + 4 * rows.size();
+         for (byte[][] row : rows)
+            size += 8 + row[0].length + row[1].length + row[2].length + row[3].length + 4;
+         ByteBuffer out = ByteBuffer.allocate(size);
+
+         long version = System.currentTimeMillis();
+         if (file.exists()){
+            try{
+               version = Math.max(version, open(file).version() + 1);
+            }catch (IOException e){
+               // not a snapshot, overwrite it
+            }
+         }
+         out.putInt(MAGIC).putShort(FORMAT).putShort((short) 0).putLong(version).putInt(rows.size()).putInt(0);
+
+         int[] offsets = new int[rows.size()];
+         for (int i = 0; i < rows.size(); i++){
+            offsets[i] = out.position();
+            for (byte[] s : rows.get(i)){
+               if (s.length > 0xFFFF)
+                  throw new IOException("Menu value too long for a snapshot");
+               out.putShort((short) s.length).put(s);
+            }
+            out.putFloat(prices.get(i));
+         }
+         out.putInt(20, out.position());
+         for (Integer i : order)
+            out.putInt(offsets[i]);
+
+         File tmp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+         FileOutputStream fos = new FileOutputStream(tmp);
+         try{
+            fos.write(out.array());
+            fos.getFD().sync();
+         }finally{
+            fos.close();
+         }
+         Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+         return version;
+      }
+
+      private static byte[] utf8(String s){
+         return s.getBytes(UTF8);
+      }
+
+      private static final Charset UTF8 = Charset.forName("UTF-8");
+   }//end MenuSnapshot
+
+   /**
+    * Checks user credentials.  Passwords are stored as salted PBKDF2 hashes
+    * ("pbkdf2$iterations$salt$hash", hex encoded) with a tunable iteration
+    * count; rows still holding a plaintext password, or a hash with a
+    * different iteration count, are rehashed on the next successful login.
+    *
+    * Every check reads at most one Users row, by primary key.  Two bounded
+    * caches keep login storms (shift change, kiosk reconnects) off the
+    * database: logins verified in the last few minutes are accepted again
+    * from memory, and a login with too many recent failures is refused
+    * without a query until its lockout ends.
+    */
+   static class Authenticator {
+
+      static final String SCHEME = "pbkdf2";
+      static final int SALT_BYTES = 16;
+      static final int HASH_BITS = 160;
+
+      static final int MAX_CACHED = 512;
+      static final long VERIFIED_MILLIS = 10L * 60L * 1000L;
+      static final int MAX_FAILURES = 5;
+      static final long LOCKOUT_MILLIS = 5L * 60L * 1000L;
+
+      private final int iterations;
+      private final SecureRandom random = new SecureRandom();
+
+      // per-process key for the verified-login digests below
+      private final byte[] cacheKey = new byte[SALT_BYTES];
+
+      // login -> {digest of the accepted password, user type, expiry}
+      private final Map<String, Object[]> verified = new Lru<Object[]>(MAX_CACHED);
+
+      // login -> {failures, time of the first failure, end of the lockout or 0}
+      private final Map<String, long[]> failures = new Lru<long[]>(MAX_CACHED);
+
+      // checked against for unknown logins so they take as long to refuse
+      private final String unknownUser;
+
+      Authenticator(int iterations){
+         this.iterations = iterations;
+         random.nextBytes(cacheKey);
+         unknownUser = hash("");
+      }
+
+      /**
+       * @return true while the login is locked out after repeated failures
+       */
+      synchronized boolean isLocked(String login){
+         long[] f = failures.get(login.trim());
+         if (f == null)
+            return false;
+         long now = System.currentTimeMillis();
+         if (f[2] != 0 ? now >= f[2] : now - f[1] >= LOCKOUT_MILLIS){
+            failures.remove(login.trim());
+            return false;
+         }
+         return f[2] != 0;
+      }
+
+      /**
+       * Verifies a login and password.
+       *
+       * @param esql the database connection
+       * @return the user type, or null when the credentials are wrong or
+       *         the login is locked out
+       * @throws java.sql.SQLException when failed to read or upgrade the user row
+       */
+      String authenticate(Cafe esql, String login, String password) throws SQLException {
+         login = login.trim();
+         if (isLocked(login))
+            return null;
+
+         byte[] digest = cacheDigest(login, password);
+         synchronized (this){
+            Object[] hit = verified.get(login);
+            if (hit != null && (Long) hit[2] > System.currentTimeMillis()
+                  && MessageDigest.isEqual((byte[]) hit[0], digest))
+               return (String) hit[1];
+         }
+
+         List<List<String>> row = esql.executeQueryAndReturnResult(
+            "SELECT U.password, U.type FROM Users U WHERE U.login = ?", login);
+         String stored = row.isEmpty() ? null : row.get(0).get(0).trim();
+         boolean ok = verify(password, stored == null ? unknownUser : stored) && stored != null;
+         if (!ok){
+            failed(login);
+            return null;
+         }
+
+         if (needsRehash(stored)){
+            try{
+               esql.executeUpdate("UPDATE Users SET password = ? WHERE login = ?", hash(password), login);
+            }catch (SQLException e){
+               // keep the old form, the login itself is valid
+               System.err.println ("Could not upgrade the stored password: " + e.getMessage ());
+            }
+         }
+         String type = row.get(0).get(1).trim();
+         synchronized (this){
+            failures.remove(login);
+            verified.put(login, new Object[] { digest, type, System.currentTimeMillis() + VERIFIED_MILLIS });
+         }
+         return type;
+      }
+
+      /**
+       * Drops anything cached for the login, e.g. after a password change.
+       */
+      synchronized void forget(String login){
+         verified.remove(login.trim());
+         failures.remove(login.trim());
+      }
+
+      /**
+       * @return the stored form of a new password
+       */
+      String hash(String password){
+         byte[] salt = new byte[SALT_BYTES];
+         random.nextBytes(salt);
+         return SCHEME + "$" + iterations + "$" + hex(salt) + "$" + hex(pbkdf2(password, salt, iterations));
+      }
+
+      boolean verify(String password, String stored){
+         String[] parts = stored.split("\\$");
+         if (parts.length != 4 || !parts[0].equals(SCHEME)){
+            // legacy plaintext row
+            return MessageDigest.isEqual(stored.getBytes(), password.getBytes());
+         }
+         byte[] expected = unhex(parts[3]);
+         return MessageDigest.isEqual(expected, pbkdf2(password, unhex(parts[2]), Integer.parseInt(parts[1])));
+      }
+
+      private boolean needsRehash(String stored){
+         return !stored.startsWith(SCHEME + "$" + iterations + "$");
+      }
+
+      private synchronized void failed(String login){
+         long[] f = failures.get(login);
+         long now = System.currentTimeMillis();
+         if (f == null || (f[2] == 0 && now - f[1] >= LOCKOUT_MILLIS)){
+            failures.put(login, new long[] { 1, now, 0 });
+            return;
+         }
+         // the lockout runs LOCKOUT_MILLIS from the failure that started it
+         if (++f[0] >= MAX_FAILURES && f[2] == 0)
+            f[2] = now + LOCKOUT_MILLIS;
+      }
+
+      private byte[] cacheDigest(String login, String password){
+         try{
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(cacheKey);
+            md.update(login.getBytes("UTF-8"));
+            md.update((byte) 0);
+            return md.digest(password.getBytes("UTF-8"));
+         }catch (Exception e){
+            throw new IllegalStateException(e);
+         }
+      }
+
+      private static byte[] pbkdf2(String password, byte[] salt, int iterations){
+         try{
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1").generateSecret(spec).getEncoded();
+         }catch (Exception e){
+            throw new IllegalStateException(e);
+         }
+      }
+
+      private static String hex(byte[] bytes){
+         StringBuilder sb = new StringBuilder();
+         for (byte b : bytes)
+            sb.append(String.format("%02x", b & 0xFF));
+         return sb.toString();
+      }
+
+      private static byte[] unhex(String s){
+         byte[] bytes = new byte[s.length() / 2];
+         for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+         return bytes;
+      }
+
+      // least-recently-used map holding at most max entries
+      private static class Lru<V> extends LinkedHashMap<String, V> {
+         private static final long serialVersionUID = 1L;
+
+         private final int max;
+
+         Lru(int max){
+            super(16, 0.75f, true);
+            this.max = max;
+         }
+
+         protected boolean removeEldestEntry(Map.Entry<String, V> eldest){
+            return size() > max;
+         }
+      }
+   }//end Authenticator
+
+   /**
+    * Write-behind buffer for ItemStatus status changes.  Kitchen staff
+    * stepping an item through its statuses only queue the change; a
+    * background thread writes the queue as one JDBC batch in one
+    * transaction when it reaches batchSize entries or every flushMillis.
+    *
+    * Changes to the same (orderid, itemName) are coalesced, so only the
+    * last status and its time are written.  At most maxPending items are
+    * buffered; submit blocks while the buffer is full (backpressure).  The
+    * buffer uses its own connection, so its transactions never mix with
+    * the statements of the interactive session, and is flushed by close(),
+    * which cleanup() and a JVM shutdown hook both call.
+    */
+   static class ItemStatusWriter {
+
+      private static final String UPDATE =
+         "UPDATE ItemStatus SET status = ?, lastUpdated = ? WHERE orderid = ? AND itemName = ?";
+
+      private final Connection connection;
+      private final int batchSize;
+      private final int maxPending;
+      private final long flushMillis;
+
+      // "orderid/itemName" -> {orderid, itemName, status, lastUpdated}, oldest first
+      private final Map<String, Object[]> pending = new LinkedHashMap<String, Object[]>();
+
+      // held while a batch is written, so flushes never overlap
+      private final Object flushLock = new Object();
+
+      private final Thread flusher;
+      private final Thread shutdownHook;
+      private boolean closed = false;
+
+      ItemStatusWriter(Connection connection, int batchSize, int maxPending, long flushMillis){
+         this.connection = connection;
+         this.batchSize = batchSize;
+         this.maxPending = Math.max(maxPending, batchSize);
+         this.flushMillis = flushMillis;
+
+         flusher = new Thread("ItemStatus flusher") {
+            public void run(){
+               while (awaitWork()){
+                  try{
+                     flush();
+                  }catch (SQLException e){
+                     System.err.println ("Status updates not saved yet: " + e.getMessage ());
+                     try{
+                        // retry on the next tick rather than spin on a failing database
+                        Thread.sleep(ItemStatusWriter.this.flushMillis);
+                     }catch (InterruptedException ie){
+                        return;
+                     }
+                  }
+               }
+            }
+         };
+         flusher.setDaemon(true);
+         flusher.start();
+
+         shutdownHook = new Thread() {
+            public void run(){
+               close();
+            }
+         };
+         Runtime.getRuntime().addShutdownHook(shutdownHook);
+      }
+
+      /**
+       * Queues a status change, replacing any queued change of the same item.
+       *
+       * @throws java.lang.InterruptedException when interrupted while the buffer is full
+       */
+      synchronized void submit(int orderid, String itemName, String status) throws InterruptedException {
+         if (closed)
+            throw new IllegalStateException("status writer is closed");
+         String key = orderid + "/" + itemName.trim();
+         while (!pending.containsKey(key) && pending.size() >= maxPending){
+            notifyAll();
+            wait();
+            if (closed)
+               throw new IllegalStateException("status writer is closed");
+         }
+         // remove first so the entry moves to the end of the queue
+         pending.remove(key);
+         pending.put(key, new Object[] { orderid, itemName.trim(), status, new Timestamp(System.currentTimeMillis()) });
+         if (pending.size() >= batchSize)
+            notifyAll();
+      }
+
+      /**
+       * @return the queued, not yet written status of an item, or null
+       */
+      synchronized String pendingStatus(int orderid, String itemName){
+         Object[] change = pending.get(orderid + "/" + itemName.trim());
+         return change == null ? null : (String) change[2];
+      }
+
+      /**
+       * Writes every queued change now.  On failure the changes go back in
+       * the queue, unless a newer change of the same item arrived meanwhile.
+       *
+       * @throws java.sql.SQLException when the batch could not be written
+       */
+      void flush() throws SQLException {
+         synchronized (flushLock){
+            Map<String, Object[]> batch;
+            synchronized (this){
+               if (pending.isEmpty())
+                  return;
+               batch = new LinkedHashMap<String, Object[]>(pending);
+               pending.clear();
+               notifyAll();
+            }
+            try{
+               connection.setAutoCommit(false);
+               PreparedStatement stmt = connection.prepareStatement(UPDATE);
+               try{
+                  for (Object[] change : batch.values()){
+                     stmt.setString(1, (String) change[2]);
+                     stmt.setTimestamp(2, (Timestamp) change[3]);
+                     stmt.setInt(3, (Integer) change[0]);
+                     stmt.setString(4, (String) change[1]);
+                     stmt.addBatch();
+                  }
+                  stmt.executeBatch();
+               }finally{
+                  stmt.close();
+               }
+               connection.commit();
+            }catch (SQLException e){
+               try{
+                  connection.rollback();
+               }catch (SQLException ignored){
+                  // the batch is requeued either way
+               }
+               synchronized (this){
+                  for (Map.Entry<String, Object[]> change : batch.entrySet())
+                     if (!pending.containsKey(change.getKey()))
+                        pending.put(change.getKey(), change.getValue());
+               }
+               throw e;
+            }
+         }
+      }
+
+      /**
+       * Stops the background thread, writes what is still queued and closes
+       * the connection.  Safe to call more than once.
+       */
+      void close(){
+         synchronized (this){
+            if (closed)
+               return;
+            closed = true;
+            notifyAll();
+         }
+         try{
+            flusher.join(flushMillis);
+         }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+         }
+         try{
+            flush();
+         }catch (SQLException e){
+            System.err.println ("Lost queued status updates: " + e.getMessage ());
+         }
+         try{
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+         }catch (IllegalStateException e){
+            // already shutting down, this is the hook
+         }
+         try{
+            connection.close();
+         }catch (SQLException e){
+            // ignored.
+         }
+      }
+
+      // waits until a batch is full or flushMillis passed; false once closed
+      private synchronized boolean awaitWork(){
+         long deadline = System.currentTimeMillis() + flushMillis;
+         long left;
+         while (!closed && pending.size() < batchSize && (left = deadline - System.currentTimeMillis()) > 0){
+            try{
+               wait(left);
+            }catch (InterruptedException e){
+               return false;
+            }
+         }
+         return !closed;
+      }
+   }//end ItemStatusWriter
+
+   /**
+    * Decides whether a read-only query may run on the replica.  Staleness
+    * is measured in WAL positions rather than trusted from the replica: a
+    * background thread samples the primary's current WAL position every
+    * LAG_CHECK_MILLIS on its own connection, and the replica is as stale as
+    * the newest sample it has replayed past.  Sampling on a timer rather
+    * than on reads means a lag check always has recent samples to compare
+    * against, however rarely reads come in.  A
+    * replica whose WAL receiver stopped therefore ages out as soon as the
+    * primary writes anything, instead of reporting itself caught up.
+    *
+    * A read goes to the primary when no sample within maxLagMillis has been
+    * replayed, and, for read-your-writes, while the replica has not replayed
+    * the WAL position the primary reached after the user's last write.  That
+    * position is read on the user's first routed read after the write, not
+    * on the write itself; it is at or past the write either way.
+    */
+   static class ReplicaRouter {
+
+      private static final long LAG_CHECK_MILLIS = 1000L;
+
+      private final Connection primary;
+      private final Connection sampler;
+      private final Connection replica;
+      private final long maxLagMillis;
+
+      // logins that wrote since their last routed read
+      private final Set<String> wroteSinceRead = new HashSet<String>();
+
+      // login -> primary WAL position after that user's last write
+      private final Map<String, Long> lastWrite = new HashMap<String, Long>();
+
+      // {time, primary WAL position} samples of the last maxLagMillis, oldest first
+      private final LinkedList<long[]> samples = new LinkedList<long[]>();
+
+      private long lagCheckedAt = 0;
+      private long lagAtCheck = Long.MAX_VALUE;
+
+      private final Thread samplerThread;
+      private volatile boolean closed = false;
+
+      ReplicaRouter(Connection primary, Connection sampler, Connection replica, long maxLagMillis){
+         this.primary = primary;
+         this.sampler = sampler;
+         this.replica = replica;
+         this.maxLagMillis = maxLagMillis;
+
+         samplerThread = new Thread("WAL position sampler") {
+            public void run(){
+               boolean failing = false;
+               while (!closed){
+                  try{
+                     // timed before the query, so the sample never looks newer than it is
+                     long time = System.currentTimeMillis();
+                     sample(time, lsn(ReplicaRouter.this.sampler, "pg_current_wal_insert_lsn()"));
+                     failing = false;
+                  }catch (SQLException e){
+                     // without fresh samples the replica ages out, so reads fall back to the primary
+                     if (!failing)
+                        System.err.println ("Primary WAL position unavailable: " + e.getMessage ());
+                     failing = true;
+                  }
+                  try{
+                     Thread.sleep(LAG_CHECK_MILLIS);
+                  }catch (InterruptedException e){
+                     return;
+                  }
+               }
+            }
+         };
+         samplerThread.setDaemon(true);
+         samplerThread.start();
+      }
+
+      /**
+       * Records that the user's writes so far are committed on the primary.
+       */
+      synchronized void wrote(String login){
+         if (login != null)
+            wroteSinceRead.add(login);
+      }
+
+      /**
+       * @return the connection a read by this user should use
+       */
+      synchronized Connection route(String login){
+         if (login != null && wroteSinceRead.contains(login)){
+            try{
+               lastWrite.put(login, lsn(primary, "pg_current_wal_insert_lsn()"));
+               wroteSinceRead.remove(login);
+            }catch (SQLException e){
+               // cannot tell what the replica must reach, try again next read
+               return primary;
+            }
+         }
+         Long wrote = login == null ? null : lastWrite.get(login);
+         if (wrote != null){
+            if (replayed() < wrote)
+               return primary;
+            lastWrite.remove(login);
+         }
+         long now = System.currentTimeMillis();
+         if (now - lagCheckedAt >= LAG_CHECK_MILLIS){
+            lagAtCheck = lagMillis(now);
+            lagCheckedAt = now;
+         }
+         // the replica can only have fallen further behind since the check
+         if (lagAtCheck == Long.MAX_VALUE || lagAtCheck + (now - lagCheckedAt) > maxLagMillis)
+            return primary;
+         return replica;
+      }
+
+      /**
+       * Marks the replica as stale after a failed read, so reads go to the
+       * primary until the next lag check.
+       */
+      synchronized void failed(){
+         lagAtCheck = Long.MAX_VALUE;
+         lagCheckedAt = System.currentTimeMillis();
+      }
+
+      void close(){
+         closed = true;
+         samplerThread.interrupt();
+         try{
+            samplerThread.join(LAG_CHECK_MILLIS);
+         }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+         }
+         try{
+            sampler.close();
+         }catch (SQLException e){
+            // ignored.
+         }
+         try{
+            replica.close();
+         }catch (SQLException e){
+            // ignored.
+         }
+      }
+
+      private synchronized void sample(long time, long position){
+         samples.addLast(new long[] { time, position });
+         while (time - samples.getFirst()[0] > maxLagMillis)
+            samples.removeFirst();
+      }
+
+      // how far the replica is behind the primary, Long.MAX_VALUE when more
+      // than maxLagMillis or unknown
+      private long lagMillis(long now){
+         while (!samples.isEmpty() && now - samples.getFirst()[0] > maxLagMillis)
+            samples.removeFirst();
+         if (samples.isEmpty())
+            return Long.MAX_VALUE;
+         long replayed = replayed();
+         for (Iterator<long[]> it = samples.descendingIterator(); it.hasNext(); ){
+            long[] sample = it.next();
+            if (sample[1] <= replayed)
+               return now - sample[0];
+         }
+         return Long.MAX_VALUE;
+      }
+
+      // WAL position the replica has replayed, -1 when unavailable
+      private long replayed(){
+         try{
+            return lsn(replica, "pg_last_wal_replay_lsn()");
+         }catch (SQLException e){
+            System.err.println ("Replica unavailable: " + e.getMessage ());
+            return -1;
+         }
+      }
+
+      // reads a WAL position such as 16/B374D848 as one number
+      private static long lsn(Connection connection, String function) throws SQLException {
+         Statement stmt = connection.createStatement();
+         try{
+            ResultSet rs = stmt.executeQuery("SELECT " + function);
+            if (!rs.next() || rs.getString(1) == null)
+               throw new SQLException(function + " returned no position");
+            String[] parts = rs.getString(1).trim().split("/");
+            return (Long.parseLong(parts[0], 16) << 32) | Long.parseLong(parts[1], 16);
+         }finally{
+            stmt.close();
+         }
+      }
+   }//end ReplicaRouter
+
 }//end Cafe
 
@@ -0,0 +1,503 @@
+/*
+ * Synthetic data generator for the Cafe database
+ * ==============================================
+ *
+ * Produces Users, Menu, Orders and ItemStatus rows at any scale, either as
+ * ';'-delimited files for COPY (the format of load_data.sql) or straight
+ * into the database through JDBC batches.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Generates a deterministic data set: the same seed, sizes and end date
+ * always give the same rows, whatever the number of threads.  Orders are
+ * cut into fixed-size chunks and every chunk draws from its own Random
+ * seeded from the seed and the chunk number, so threads only decide which
+ * chunk is written when.
+ *
+ * The data is skewed the way a cafe is: item and customer choice follow a
+ * Zipf distribution (a few best-sellers, a few regulars who order a lot)
+ * and order times cluster around the breakfast and lunch rushes.
+ */
+public class DataGenerator {
+
+   // orders generated per chunk, i.e. per task and per output file
+   static final int CHUNK_ORDERS = 1000000;
+
+   // rows sent per JDBC batch when writing to the database
+   static final int BATCH_ROWS = 1000;
+
+   // relative order volume for every hour of the day
+   static final int[] HOUR_WEIGHTS = {
+      0, 0, 0, 0, 0, 1, 4, 10, 14, 9, 6, 9, 16, 15, 8, 5, 5, 6, 5, 3, 2, 1, 0, 0 };
+
+   static final String[] TYPES = { "Drinks", "Sweets", "Soup", "Sandwiches", "Salads", "Breakfast" };
+
+   static final String[] STATUSES = { "Hasn't started", "Started", "Finished" };
+
+   long seed = 42;
+   int users = 1000;
+   int items = 100;
+   long orders = 10000;
+   int days = 30;
+   int threads = Runtime.getRuntime().availableProcessors();
+   Date end = today();
+
+   // where the rows go: a directory for COPY files, or a database
+   File outDir;
+   String dbname, dbport, dbuser;
+
+   // per item, filled by the Menu pass and read by every order chunk
+   String[] itemNames;
+   int[] itemCents;
+
+   Zipf itemChoice;
+   Zipf customerChoice;
+
+   public static void main (String[] args) {
+      DataGenerator gen = new DataGenerator();
+      try{
+         gen.parse(args);
+      }catch (Exception e){
+         System.err.println (e.getMessage ());
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            DataGenerator.class.getName () +
+            " [--seed N] [--users N] [--items N] [--orders N] [--days N] [--threads N] [--end yyyy-MM-dd]" +
+            " (--out <dir> | --db <dbname> <port> <user>)");
+         return;
+      }
+      try{
+         System.out.println(String.format(
+            "Generating --seed %d --users %d --items %d --orders %d --days %d --end %s with %d thread(s)",
+            gen.seed, gen.users, gen.items, gen.orders, gen.days, new SimpleDateFormat("yyyy-MM-dd").format(gen.end), gen.threads));
+         long started = System.currentTimeMillis();
+         gen.run();
+         System.out.println("Done in " + (System.currentTimeMillis() - started) / 1000 + "s");
+      }catch (Exception e){
+         System.err.println (e.getMessage ());
+      }
+   }//end main
+
+   void parse(String[] args) throws ParseException {
+      for (int i = 0; i < args.length; i++){
+         String a = args[i];
+         if (a.equals("--db")){
+            if (i + 3 >= args.length)
+               throw new IllegalArgumentException("--db needs <dbname> <port> <user>");
+            dbname = args[++i];
+            dbport = args[++i];
+            dbuser = args[++i];
+            continue;
+         }
+         if (i + 1 >= args.length)
+            throw new IllegalArgumentException(a + " needs a value");
+         String v = args[++i];
+         if (a.equals("--seed")) seed = Long.parseLong(v);
+         else if (a.equals("--users")) users = Integer.parseInt(v);
+         else if (a.equals("--items")) items = Integer.parseInt(v);
+         else if (a.equals("--orders")) orders = Long.parseLong(v);
+         else if (a.equals("--days")) days = Integer.parseInt(v);
+         else if (a.equals("--threads")) threads = Integer.parseInt(v);
+         else if (a.equals("--end")) end = new SimpleDateFormat("yyyy-MM-dd").parse(v);
+         else if (a.equals("--out")) outDir = new File(v).getAbsoluteFile();
+         else throw new IllegalArgumentException("Unknown option " + a);
+      }
+      if ((outDir == null) == (dbname == null))
+         throw new IllegalArgumentException("Give exactly one of --out or --db");
+      if (users < 1 || items < 1 || orders < 0 || days < 1 || threads < 1)
+         throw new IllegalArgumentException("Sizes must be positive");
+      // Orders.orderid is a serial, i.e. an int
+      if (orders > Integer.MAX_VALUE)
+         throw new IllegalArgumentException("--orders must be at most " + Integer.MAX_VALUE);
+   }
+
+   void run() throws Exception {
+      if (outDir != null && !outDir.isDirectory() && !outDir.mkdirs())
+         throw new IOException("Cannot create " + outDir);
+      if (dbname != null)
+         Class.forName ("org.postgresql.Driver").newInstance ();
+
+      itemChoice = new Zipf(items, 1.1);
+      customerChoice = new Zipf(users, 1.0);
+
+      generateMenu();
+      generateUsers();
+
+      int chunks = (int) ((orders + CHUNK_ORDERS - 1) / CHUNK_ORDERS);
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      try{
+         List<Future<Void>> done = new ArrayList<Future<Void>>();
+         for (int c = 0; c < chunks; c++){
+            final int chunk = c;
+            done.add(pool.submit(new Callable<Void>() {
+               public Void call() throws Exception {
+                  generateOrders(chunk);
+                  return null;
+               }
+            }));
+         }
+         for (Future<Void> f : done)
+            f.get();
+      }finally{
+         pool.shutdown();
+      }
+
+      if (outDir != null)
+         writeLoadScript(chunks);
+      else
+         restartOrderSequence();
+   }
+
+   void generateMenu() throws Exception {
+      Random rnd = new Random(mix(seed, -1));
+      itemNames = new String[items];
+      itemCents = new int[items];
+      Table menu = open("menu", "INSERT INTO Menu (itemName, type, price, description, imageURL) VALUES (?, ?, ?, ?, ?)");
+      try{
+         for (int i = 0; i < items; i++){
+            String type = TYPES[i % TYPES.length];
+            itemNames[i] = type + " " + (i / TYPES.length + 1);
+            itemCents[i] = 99 + 25 * rnd.nextInt(48);
+            menu.row(itemNames[i], type, BigDecimal.valueOf(itemCents[i], 2), "", "https://example.com/menu/" + (i + 1) + ".jpg");
+         }
+      }finally{
+         menu.close();
+      }
+   }
+
+   void generateUsers() throws Exception {
+      Random rnd = new Random(mix(seed, -2));
+      Table out = open("users", "INSERT INTO Users (login, phoneNum, password, favItems, type) VALUES (?, ?, ?, ?, ?)");
+      try{
+         for (int i = 0; i < users; i++){
+            // one manager, about one employee in a hundred, the rest customers
+            String type = i == 0 ? "Manager" : (i % 100 == 1 ? "Employee" : "Customer");
+            String phone = String.format("+1(%03d)%03d-%04d", 200 + i / 10000000 % 800, i / 10000 % 1000, i % 10000);
+            out.row(login(i), phone, Long.toString(rnd.nextLong() & 0xffffffffffL, 36), "", type);
+         }
+      }finally{
+         out.close();
+      }
+   }
+
+   void generateOrders(int chunk) throws Exception {
+      Random rnd = new Random(mix(seed, chunk));
+      long first = (long) chunk * CHUNK_ORDERS;
+      long last = Math.min(orders, first + CHUNK_ORDERS);
+      long startMillis = end.getTime() - days * 86400000L;
+      int hourTotal = 0;
+      for (int w : HOUR_WEIGHTS)
+         hourTotal += w;
+
+      Table orderOut = open(String.format("orders-%05d", chunk),
+         "INSERT INTO Orders (orderid, login, paid, timeStampRecieved, total) VALUES (?, ?, ?, ?, ?)");
+      // ItemStatus rows reference the Orders rows, so in the database both
+      // go through one transaction with the Orders batch sent first
+      Table itemOut = open(String.format("itemStatus-%05d", chunk),
+         "INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments) VALUES (?, ?, ?, ?, ?)", orderOut);
+      try{
+         int[] picked = new int[8];
+         for (long o = first; o < last; o++){
+            int orderid = (int) (o + 1);
+
+            // orders are spread evenly over the days, so ids grow with time,
+            // and within a day follow the hourly weights
+            long day = o * days / Math.max(orders, 1);
+            int h = rnd.nextInt(hourTotal), hour = 0;
+            while (h >= HOUR_WEIGHTS[hour])
+               h -= HOUR_WEIGHTS[hour++];
+            long placed = startMillis + day * 86400000L + hour * 3600000L + rnd.nextInt(3600) * 1000L;
+
+            // most orders have one to three items, a few up to eight
+            int count = Math.min(Math.min(1 + (int) (-Math.log(1 - rnd.nextDouble()) * 1.2), 8), items);
+            int cents = 0;
+            for (int k = 0; k < count; k++){
+               int item;
+               boolean dup;
+               do{
+                  item = itemChoice.sample(rnd) - 1;
+                  dup = false;
+                  for (int j = 0; j < k; j++)
+                     dup |= picked[j] == item;
+               }while (dup);
+               picked[k] = item;
+               cents += itemCents[item];
+            }
+
+            // older orders are settled, the last day is still in progress
+            boolean recent = day >= days - 1;
+            orderOut.row(orderid, login(scatter(customerChoice.sample(rnd) - 1, users)),
+               !recent || rnd.nextInt(4) != 0, new Timestamp(placed), BigDecimal.valueOf(cents, 2));
+            for (int k = 0; k < count; k++){
+               String status = recent ? STATUSES[rnd.nextInt(STATUSES.length)] : "Finished";
+               itemOut.row(orderid, itemNames[picked[k]], new Timestamp(placed + rnd.nextInt(900) * 1000L), status, "");
+            }
+         }
+      }finally{
+         try{
+            itemOut.close();
+         }finally{
+            orderOut.close();
+         }
+      }
+   }
+
+   void writeLoadScript(int chunks) throws IOException {
+      Writer sql = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(outDir, "load_data.sql")), "UTF-8"));
+      try{
+         sql.write(copy("MENU", "menu"));
+         sql.write(copy("USERS", "users"));
+         for (int c = 0; c < chunks; c++)
+            sql.write(copy("ORDERS", String.format("orders-%05d", c)));
+         sql.write("ALTER SEQUENCE orders_orderid_seq RESTART " + (orders + 1) + ";\n\n");
+         for (int c = 0; c < chunks; c++)
+            sql.write(copy("ITEMSTATUS", String.format("itemStatus-%05d", c)));
+      }finally{
+         sql.close();
+      }
+      System.out.println("Load with: psql -h localhost -p $PGPORT $USER\"_DB\" < " + new File(outDir, "load_data.sql"));
+   }
+
+   String copy(String table, String name){
+      return "COPY " + table + "\nFROM '" + new File(outDir, name + ".csv") + "'\nWITH DELIMITER ';';\n\n";
+   }
+
+   void restartOrderSequence() throws SQLException {
+      Connection c = connect();
+      try{
+         c.createStatement().executeUpdate("ALTER SEQUENCE orders_orderid_seq RESTART " + (orders + 1));
+      }finally{
+         c.close();
+      }
+   }
+
+   Connection connect() throws SQLException {
+      String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+      return DriverManager.getConnection(url, dbuser, "");
+   }
+
+   Table open(String name, String insert) throws Exception {
+      if (outDir != null)
+         return new CsvTable(new File(outDir, name + ".csv"));
+      return new JdbcTable(connect(), insert, null);
+   }
+
+   /**
+    * Opens a table whose rows reference the rows of parent.  In the
+    * database it shares parent's connection and transaction and flushes
+    * parent's pending rows before each of its own batches; close it before
+    * parent, which commits both.
+    */
+   Table open(String name, String insert, Table parent) throws Exception {
+      if (outDir != null)
+         return new CsvTable(new File(outDir, name + ".csv"));
+      JdbcTable p = (JdbcTable) parent;
+      return new JdbcTable(p.connection, insert, p);
+   }
+
+   static String login(int i){
+      return String.format("user%07d", i);
+   }
+
+   /**
+    * Maps a popularity rank onto an index so the heavy customers are spread
+    * over the whole id range instead of being the first logins.
+    */
+   static int scatter(int rank, int n){
+      long stride = 1000003L;
+      while (gcd(stride, n) != 1)
+         stride += 2;
+      return (int) ((rank + 1) * stride % n);
+   }
+
+   static long gcd(long a, long b){
+      return b == 0 ? a : gcd(b, a % b);
+   }
+
+   static long mix(long seed, long stream){
+      long z = seed * 0x9E3779B97F4A7C15L + stream;
+      z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+      z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+      return z ^ (z >>> 31);
+   }
+
+   static Date today(){
+      Calendar c = Calendar.getInstance();
+      c.set(Calendar.HOUR_OF_DAY, 0);
+      c.set(Calendar.MINUTE, 0);
+      c.set(Calendar.SECOND, 0);
+      c.set(Calendar.MILLISECOND, 0);
+      return c.getTime();
+   }
+
+   /**
+    * Destination of the rows of one table (or one chunk of it).
+    */
+   interface Table {
+      void row(Object... fields) throws Exception;
+      void close() throws Exception;
+   }
+
+   /**
+    * Writes rows in the ';'-delimited text format COPY reads.  Generated
+    * values never contain ';', '\' or newlines, so nothing is escaped.
+    */
+   static class CsvTable implements Table {
+      private final Writer out;
+
+      CsvTable(File file) throws IOException {
+         out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 1 << 20);
+      }
+
+      public void row(Object... fields) throws IOException {
+         for (int i = 0; i < fields.length; i++){
+            if (i > 0)
+               out.write(';');
+            out.write(String.valueOf(fields[i]));
+         }
+         out.write('\n');
+      }
+
+      public void close() throws IOException {
+         out.close();
+      }
+   }
+
+   /**
+    * Inserts rows BATCH_ROWS per JDBC batch.  A table without a parent owns
+    * its connection and commits once when closed; a table with a parent
+    * writes in the parent's transaction and sends the parent's pending rows
+    * first, so foreign keys always find their target rows.
+    */
+   static class JdbcTable implements Table {
+      private final Connection connection;
+      private final PreparedStatement stmt;
+      private final JdbcTable parent;
+      private int pending = 0;
+
+      JdbcTable(Connection connection, String insert, JdbcTable parent) throws SQLException {
+         this.connection = connection;
+         this.parent = parent;
+         connection.setAutoCommit(false);
+         stmt = connection.prepareStatement(insert);
+      }
+
+      public void row(Object... fields) throws SQLException {
+         for (int i = 0; i < fields.length; i++)
+            stmt.setObject(i + 1, fields[i]);
+         stmt.addBatch();
+         if (++pending == BATCH_ROWS)
+            flush();
+      }
+
+      void flush() throws SQLException {
+         if (parent != null)
+            parent.flush();
+         if (pending > 0){
+            stmt.executeBatch();
+            pending = 0;
+         }
+      }
+
+      public void close() throws SQLException {
+         try{
+            flush();
+            if (parent == null)
+               connection.commit();
+         }finally{
+            stmt.close();
+            if (parent == null)
+               connection.close();
+         }
+      }
+   }
+
+   /**
+    * Zipf distribution over 1..n with exponent s, sampled by
+    * rejection-inversion (Hormann and Derflinger) in constant time and
+    * memory, so it works for millions of customers.
+    */
+   static class Zipf {
+      private final int n;
+      private final double s;
+      private final double hIntegralX1;
+      private final double hIntegralN;
+      private final double threshold;
+
+      Zipf(int n, double s){
+         this.n = n;
+         this.s = s;
+         hIntegralX1 = hIntegral(1.5) - 1;
+         hIntegralN = hIntegral(n + 0.5);
+         threshold = 2 - hIntegralInverse(hIntegral(2.5) - h(2));
+      }
+
+      int sample(Random rnd){
+         while (true){
+            double u = hIntegralN + rnd.nextDouble() * (hIntegralX1 - hIntegralN);
+            double x = hIntegralInverse(u);
+            int k = (int) (x + 0.5);
+            if (k < 1)
+               k = 1;
+            else if (k > n)
+               k = n;
+            if (k - x <= threshold || u >= hIntegral(k + 0.5) - h(k))
+               return k;
+         }
+      }
+
+      private double h(double x){
+         return Math.exp(-s * Math.log(x));
+      }
+
+      private double hIntegral(double x){
+         double logX = Math.log(x);
+         return expm1OverX((1 - s) * logX) * logX;
+      }
+
+      private double hIntegralInverse(double x){
+         double t = x * (1 - s);
+         if (t < -1)
+            t = -1;
+         return Math.exp(log1pOverX(t) * x);
+      }
+
+      private static double log1pOverX(double x){
+         return Math.abs(x) > 1e-8 ? Math.log1p(x) / x : 1 - x * (0.5 - x * (1.0 / 3 - 0.25 * x));
+      }
+
+      private static double expm1OverX(double x){
+         return Math.abs(x) > 1e-8 ? Math.expm1(x) / x : 1 + x * 0.5 * (1 + x / 3 * (1 + 0.25 * x));
+      }
+   }
+
+}//end DataGenerator
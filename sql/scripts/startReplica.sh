@@ -0,0 +1,21 @@
+#! /bin/bash
+# Starts a streaming replica of the database started by startPostgreSQL.sh.
+# Source it after startPostgreSQL.sh (PGPORT must point at the primary).
+folder=/tmp/$USER
+export REPLICA_PGDATA=$folder/replicaDB/data
+export REPLICA_PGSOCKETS=$folder/replicaDB/sockets
+export REPLICA_PORT=1025
+
+#Clear folder
+rm -rf $folder/replicaDB
+
+#Initialize folders
+mkdir $folder/replicaDB
+mkdir $folder/replicaDB/sockets
+
+#Copy the primary and configure the copy as its standby (-R)
+pg_basebackup -h localhost -p $PGPORT -D $REPLICA_PGDATA -R -X stream
+
+sleep 1
+#Start replica
+pg_ctl -o "-c unix_socket_directories=$REPLICA_PGSOCKETS -p $REPLICA_PORT" -D $REPLICA_PGDATA -l $folder/replica_logfile start
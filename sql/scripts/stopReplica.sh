@@ -0,0 +1,3 @@
+#! /bin/bash
+folder=/tmp/$USER
+pg_ctl -o "-c unix_socket_directories=$folder/replicaDB/sockets -p $REPLICA_PORT" -D $folder/replicaDB/data -l $folder/replica_logfile stop
@@ -1,3 +1,7 @@
+DROP TABLE FavoriteItems;
+DROP TABLE DailySummary;
+DROP TABLE DailyItemSummary;
+DROP TABLE DailyCustomerSummary;
 DROP TABLE Users CASCADE;
 DROP TABLE Orders CASCADE;
 DROP TABLE Menu CASCADE;
@@ -6,7 +10,7 @@ DROP TABLE ItemStatus;
 CREATE TABLE Users(
 	login char(50) UNIQUE NOT NULL, 
 	phoneNum char(16) UNIQUE, 
-	password char(50) NOT NULL,
+	password varchar(100) NOT NULL,
 	favItems char(400),
 	type char(8) NOT NULL,
 	PRIMARY KEY(login));
@@ -36,3 +40,32 @@ CREATE TABLE ItemStatus(
 	PRIMARY KEY(orderid,itemName),
 	FOREIGN KEY(orderid) REFERENCES Orders(orderid),
 	FOREIGN KEY(itemName) REFERENCES Menu(itemName));
+
+CREATE TABLE FavoriteItems(
+	login char(50) NOT NULL,
+	itemName char(50) NOT NULL,
+	PRIMARY KEY(login,itemName),
+	FOREIGN KEY(login) REFERENCES Users(login),
+	FOREIGN KEY(itemName) REFERENCES Menu(itemName));
+
+-- Orders past the retention age, rolled up per day by the compaction job.
+-- No foreign keys: summaries outlive the orders, users and menu items.
+-- Items are counted only: ItemStatus has no per-line price to total.
+CREATE TABLE DailySummary(
+	day date NOT NULL,
+	orders integer NOT NULL,
+	revenue real NOT NULL,
+	PRIMARY KEY(day));
+
+CREATE TABLE DailyItemSummary(
+	day date NOT NULL,
+	itemName char(50) NOT NULL,
+	quantity integer NOT NULL,
+	PRIMARY KEY(day,itemName));
+
+CREATE TABLE DailyCustomerSummary(
+	login char(50) NOT NULL,
+	day date NOT NULL,
+	orders integer NOT NULL,
+	total real NOT NULL,
+	PRIMARY KEY(login,day));
@@ -15,3 +15,8 @@ COPY ITEMSTATUS
 FROM '/extra/skang121/project1/data/itemStatus.csv'
 WITH DELIMITER ';';
 
+-- Users.favItems is a free-text list; keep only the entries naming a menu item.
+INSERT INTO FavoriteItems (login, itemName)
+SELECT U.login, M.itemName
+FROM Users U, Menu M
+WHERE position(',' || lower(replace(trim(M.itemName), ' ', '')) || ',' IN ',' || lower(replace(trim(U.favItems), ' ', '')) || ',') > 0;